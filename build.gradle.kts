@@ -1,6 +1,7 @@
 plugins {
     `java-gradle-plugin`
     id("maven-publish")
+    alias(libs.plugins.jmh)
 }
 
 group = "org.wallentines"
@@ -28,6 +29,11 @@ tasks.test {
     workingDir(file("run/test"))
 }
 
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    jvmArgsAppend.add("-Dgradle.patch.fixtures=${file("run/test").absolutePath}")
+}
+
 gradlePlugin {
     val multiVersion by plugins.creating {
         id = "org.wallentines.gradle-patch"
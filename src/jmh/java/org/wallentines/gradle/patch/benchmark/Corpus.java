@@ -0,0 +1,137 @@
+package org.wallentines.gradle.patch.benchmark;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Loads the inputs for benchmarks. A corpus is either the name of one of the test fixtures (e.g. {@code SpigotPlayer}),
+ * or {@code synthetic-<lines>-<entries>}, which generates a Java-like source file with roughly the given number of
+ * lines, and a patch file with the given number of entries, none of which overlap.
+ */
+public final class Corpus {
+
+    private static final String FIXTURES_PROPERTY = "gradle.patch.fixtures";
+    private static final int METHOD_LINES = 6;
+
+    public final String source;
+    public final JsonArray patch;
+
+    private Corpus(String source, JsonArray patch) {
+        this.source = source;
+        this.patch = patch;
+    }
+
+    public static Corpus load(String name) throws IOException {
+
+        if(name.startsWith("synthetic-")) {
+            String[] parts = name.split("-");
+            if(parts.length != 3) {
+                throw new IllegalArgumentException("Synthetic corpus names must be in the form synthetic-<lines>-<entries>!");
+            }
+            int lines = Integer.parseInt(parts[1]);
+            int entries = Integer.parseInt(parts[2]);
+            return new Corpus(generateSource(lines), generatePatch(lines, entries));
+        }
+
+        Path dir = Path.of(System.getProperty(FIXTURES_PROPERTY, "run/test"));
+        String source = Files.readString(dir.resolve(name + ".java"), StandardCharsets.UTF_8);
+        JsonArray patch = JsonParser.parseString(Files.readString(dir.resolve(name + ".json"), StandardCharsets.UTF_8)).getAsJsonArray();
+        return new Corpus(source, patch);
+    }
+
+    /**
+     * Generates a Java-like source file with roughly the given number of lines
+     * @param lines The number of lines to generate
+     * @return The generated source
+     */
+    public static String generateSource(int lines) {
+
+        int methods = getMethodCount(lines);
+        StringBuilder out = new StringBuilder(lines * 40);
+        out.append("package org.wallentines.generated;\n\n");
+        out.append("public class Generated {\n");
+        for(int i = 0 ; i < methods ; i++) {
+            out.append("\n");
+            out.append("    public int method").append(i).append("(int value) {\n");
+            out.append("        int local").append(i).append(" = value * ").append(i).append(";\n");
+            out.append("        String name").append(i).append(" = \"value-").append(i).append("\";\n");
+            out.append("        return local").append(i).append(" + name").append(i).append(".length();\n");
+            out.append("    }\n");
+        }
+        out.append("}\n");
+        return out.toString();
+    }
+
+    /**
+     * Generates a patch for a source generated by {@link #generateSource(int)}. Each entry targets a different method,
+     * and entry types and line rules are mixed to cover every kind of action
+     * @param lines The number of lines in the source to patch
+     * @param entries The number of entries to generate
+     * @return The generated patch file
+     */
+    public static JsonArray generatePatch(int lines, int entries) {
+
+        int methods = getMethodCount(lines);
+        if(entries > methods) {
+            throw new IllegalArgumentException("A source with " + lines + " lines can only fit " + methods + " entries!");
+        }
+
+        JsonArray out = new JsonArray();
+        for(int i = 0 ; i < entries ; i++) {
+
+            int method = (int) ((long) i * methods / entries);
+            JsonObject entry = new JsonObject();
+            JsonArray rules = new JsonArray();
+            switch (i % 4) {
+                case 0 -> {
+                    entry.addProperty("type", "replace");
+                    rules.add(find("int local" + method + " ="));
+                    entry.addProperty("find", "value * " + method);
+                    entry.addProperty("replace", "value * " + (method + 1));
+                }
+                case 1 -> {
+                    entry.addProperty("type", "set");
+                    rules.add(find("String name" + method + " ="));
+                    entry.addProperty("value", "        String name" + method + " = \"patched-" + method + "\";");
+                }
+                case 2 -> {
+                    entry.addProperty("type", "insert");
+                    rules.add(find("public int method" + method + "("));
+                    entry.addProperty("value", "        // Inserted into method " + method);
+                }
+                default -> {
+                    entry.addProperty("type", "replace_regex");
+                    if(i % 50 == 3) {
+                        JsonObject rule = new JsonObject();
+                        rule.addProperty("find_regex", "return local" + method + " \\+");
+                        rules.add(rule);
+                    } else {
+                        rules.add(find("return local" + method + " +"));
+                    }
+                    entry.addProperty("find", "return (\\w+) \\+");
+                    entry.addProperty("replace", "return $1 -");
+                }
+            }
+            entry.add("lines", rules);
+            out.add(entry);
+        }
+        return out;
+    }
+
+    private static JsonObject find(String find) {
+        JsonObject out = new JsonObject();
+        out.addProperty("find", find);
+        return out;
+    }
+
+    private static int getMethodCount(int lines) {
+        return Math.max(1, (lines - 4) / METHOD_LINES);
+    }
+
+}
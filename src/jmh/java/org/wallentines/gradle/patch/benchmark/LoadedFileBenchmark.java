@@ -0,0 +1,87 @@
+package org.wallentines.gradle.patch.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.wallentines.gradle.patch.IntRange;
+import org.wallentines.gradle.patch.LineSupplier;
+import org.wallentines.gradle.patch.LoadedFile;
+import org.wallentines.gradle.patch.RangeSet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadedFileBenchmark {
+
+    private static final int EDITS = 100;
+
+    @Param({ "SpigotPlayer", "ContextSerializer", "synthetic-10000-0", "synthetic-100000-0" })
+    public String corpus;
+
+    private String source;
+    private LoadedFile file;
+    private Pattern pattern;
+    private LineSupplier block;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        source = Corpus.load(corpus).source;
+        file = new LoadedFile(source);
+        pattern = Pattern.compile("^\\s*return .*;$", Pattern.MULTILINE);
+        block = LineSupplier.findBlock(List.of("        }", "    }"), new IntRange(0));
+    }
+
+    @Benchmark
+    public LoadedFile construct() {
+        return new LoadedFile(source);
+    }
+
+    @Benchmark
+    public LoadedFile read() throws IOException {
+        return LoadedFile.read(new BufferedReader(new StringReader(source)));
+    }
+
+    @Benchmark
+    public LoadedFile setLines() {
+        LoadedFile out = new LoadedFile(source);
+        int length = out.getLength();
+        for(int i = 0 ; i < EDITS ; i++) {
+            int line = 1 + (int) ((long) i * length / EDITS);
+            out.setLines(new IntRange(line), "// Edited line " + i);
+        }
+        return out;
+    }
+
+    @Benchmark
+    public Collection<IntRange> findString() {
+        return file.find("return ");
+    }
+
+    @Benchmark
+    public Collection<IntRange> findPattern() {
+        return file.find(pattern);
+    }
+
+    @Benchmark
+    public RangeSet findBlock() {
+        return block.getLines(file);
+    }
+
+    @Benchmark
+    public void write(Blackhole blackhole) throws IOException {
+        file.write(OutputStream.nullOutputStream());
+        blackhole.consume(file);
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.wallentines.gradle.patch.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.wallentines.gradle.patch.LoadedFile;
+import org.wallentines.gradle.patch.PatchFile;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatchBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Sequential {
+
+        @Param({ "SpigotPlayer", "ContextSerializer", "synthetic-10000-500", "synthetic-100000-2000", "synthetic-100000-10000" })
+        public String corpus;
+
+        String source;
+        PatchFile patch;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            Corpus loaded = Corpus.load(corpus);
+            source = loaded.source;
+            patch = PatchFile.load(loaded.patch);
+        }
+    }
+
+    // SpigotPlayer.json contains overlapping entries, so it can not be applied in batched mode
+    @State(Scope.Benchmark)
+    public static class Batched {
+
+        @Param({ "ContextSerializer", "synthetic-10000-500", "synthetic-100000-2000", "synthetic-100000-10000" })
+        public String corpus;
+
+        String source;
+        PatchFile patch;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            Corpus loaded = Corpus.load(corpus);
+            source = loaded.source;
+            patch = PatchFile.load(loaded.patch);
+        }
+    }
+
+    @Benchmark
+    public LoadedFile patch(Sequential state) {
+        LoadedFile file = new LoadedFile(state.source);
+        state.patch.patch(file);
+        return file;
+    }
+
+    @Benchmark
+    public LoadedFile patchBatched(Batched state) {
+        LoadedFile file = new LoadedFile(state.source);
+        state.patch.patchBatched(file);
+        return file;
+    }
+
+}
@@ -0,0 +1,352 @@
+package org.wallentines.gradle.patch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A patch in unified diff format, as produced by {@code diff -u} or {@code git diff}. Hunks are located using the
+ * file's index of line hashes, so a hunk is still found if the lines around it have moved, and then all hunks are
+ * applied to the file in a single pass.
+ */
+public class DiffPatch implements Patch {
+
+    /**
+     * The default number of context lines which may be ignored at each end of a hunk which does not match exactly
+     */
+    public static final int DEFAULT_FUZZ = 2;
+
+    private static final Pattern HUNK_HEADER = Pattern.compile("@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*");
+
+    private final List<Hunk> hunks;
+    private final int fuzz;
+    private final int maxOffset;
+
+    public DiffPatch(List<Hunk> hunks) {
+        this(hunks, DEFAULT_FUZZ, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a diff patch
+     * @param hunks The hunks to apply, in the order they appear in the file
+     * @param fuzz The number of context lines which may be ignored at each end of a hunk which does not match exactly
+     * @param maxOffset The maximum number of lines a hunk may be found away from where its header says it should be
+     */
+    public DiffPatch(List<Hunk> hunks, int fuzz, int maxOffset) {
+        if(fuzz < 0) {
+            throw new IllegalArgumentException("Fuzz must not be negative!");
+        }
+        if(maxOffset < 0) {
+            throw new IllegalArgumentException("Max offset must not be negative!");
+        }
+        this.hunks = List.copyOf(hunks);
+        this.fuzz = fuzz;
+        this.maxOffset = maxOffset;
+    }
+
+    public List<Hunk> getHunks() {
+        return hunks;
+    }
+
+    public int getFuzz() {
+        return fuzz;
+    }
+
+    public int getMaxOffset() {
+        return maxOffset;
+    }
+
+    /**
+     * Creates a copy of this patch which searches for its hunks with the given settings
+     */
+    public DiffPatch withSearch(int fuzz, int maxOffset) {
+        if(fuzz == this.fuzz && maxOffset == this.maxOffset) {
+            return this;
+        }
+        return new DiffPatch(hunks, fuzz, maxOffset);
+    }
+
+    /**
+     * A single hunk of a diff
+     * @param oldStart The first line of the original file the hunk applies to, or the line it inserts after if it has
+     *                 no old lines
+     * @param oldLines The context and removed lines
+     * @param newLines The context and added lines
+     * @param leadingContext The number of context lines before the first change
+     * @param trailingContext The number of context lines after the last change
+     * @param oldNewline Whether the last old line was followed by a newline
+     * @param newNewline Whether the last new line is followed by a newline
+     * @param line The line of the diff the hunk's header is on
+     */
+    public record Hunk(int oldStart, List<String> oldLines, List<String> newLines, int leadingContext, int trailingContext,
+                       boolean oldNewline, boolean newNewline, int line) {
+
+        public Hunk {
+            oldLines = List.copyOf(oldLines);
+            newLines = List.copyOf(newLines);
+        }
+    }
+
+    @Override
+    public void patch(LoadedFile file, PatchStats stats) {
+        EditBatch batch = new EditBatch(file);
+        collect(batch, stats);
+        batch.apply();
+    }
+
+    /**
+     * Hunks are always applied in a single pass, so this is the same as {@link #patch(LoadedFile, PatchStats)}
+     */
+    @Override
+    public void patchBatched(LoadedFile file, PatchStats stats) {
+        patch(file, stats);
+    }
+
+    /**
+     * Locates every hunk in the batch's file, and adds their edits to the batch
+     * @throws IllegalStateException If any hunk could not be found
+     */
+    void collect(EditBatch batch, PatchStats stats) {
+
+        LoadedFile file = batch.getFile();
+        int length = file.getLength();
+        boolean empty = file.getAllLines().length() == 0;
+
+        // How far the previous hunk was from where its header said it would be. Later hunks are likely moved by as much
+        int offset = 0;
+        int next = 1;
+        Boolean trailingNewline = null;
+        List<String> failures = new ArrayList<>();
+        for(int i = 0 ; i < hunks.size() ; i++) {
+            Hunk hunk = hunks.get(i);
+            long start = System.nanoTime();
+            Match match = locate(file, hunk, offset, next);
+            long located = System.nanoTime();
+            if(match == null) {
+                failures.add("hunk " + (i + 1) + " (line " + hunk.line + ") does not match the file near line " + (hunk.oldStart + offset));
+            } else {
+                batch.setEntry(i + 1);
+                emit(batch, hunk, match);
+
+                int count = hunk.oldLines.size() - match.trimStart - match.trimEnd;
+                offset = match.line - match.trimStart - hunk.oldStart - (count == 0 ? 1 : 0);
+                next = match.line + count;
+                if(match.trimEnd == 0 && (next > length || empty)) {
+                    if(hunk.newLines.size() > match.trimStart) {
+                        trailingNewline = hunk.newNewline;
+                    } else if(match.line == 1) {
+                        trailingNewline = false;
+                    }
+                }
+            }
+            if(stats != null) {
+                stats.addEntry(new PatchStats.Entry(i + 1, "hunk", located - start, System.nanoTime() - located, match == null ? 0 : 1));
+            }
+        }
+
+        if(!failures.isEmpty()) {
+            throw new IllegalStateException("Unable to apply " + failures.size() + " of " + hunks.size() + " hunk(s)!\n - " + String.join("\n - ", failures));
+        }
+        if(trailingNewline != null) {
+            file.setTrailingNewline(trailingNewline);
+        }
+    }
+
+    private record Match(int line, int trimStart, int trimEnd) { }
+
+    private Match locate(LoadedFile file, Hunk hunk, int offset, int next) {
+
+        int size = hunk.oldLines.size();
+        if(size == 0) {
+            int line = Math.min(Math.max(hunk.oldStart + 1 + offset, next), file.getLength() + 1);
+            return new Match(line, 0, 0);
+        }
+
+        // Each level of fuzz ignores one more context line at each end of the hunk
+        int maxFuzz = Math.min(fuzz, Math.max(hunk.leadingContext, hunk.trailingContext));
+        for(int f = 0 ; f <= maxFuzz ; f++) {
+            int trimStart = Math.min(f, hunk.leadingContext);
+            int trimEnd = Math.min(f, hunk.trailingContext);
+            if(trimStart + trimEnd >= size) break;
+
+            int line = find(file, hunk.oldLines.subList(trimStart, size - trimEnd), hunk.oldStart + trimStart + offset, next);
+            if(line != -1) {
+                return new Match(line, trimStart, trimEnd);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the occurrence of the given lines closest to {@code expected}, no further than the max offset away
+     * @param file The file to search
+     * @param lines The lines to find
+     * @param expected The line the first line is expected to be on
+     * @param min The first line which may be matched
+     * @return The line the first line was found on, or -1
+     */
+    private int find(LoadedFile file, List<String> lines, int expected, int min) {
+
+        // Search around the rarest line, so common lines like "}" do not produce many candidates
+        int anchor = -1;
+        int[] candidates = null;
+        for(int i = 0 ; i < lines.size() ; i++) {
+            int[] found = file.getLinesWithHash(lines.get(i).hashCode());
+            if(found.length == 0) return -1;
+            if(candidates == null || found.length < candidates.length) {
+                anchor = i;
+                candidates = found;
+            }
+        }
+
+        // Candidates are sorted by line, so search outwards from the expected line
+        long target = (long) expected + anchor;
+        int above = Arrays.binarySearch(candidates, (int) Math.max(0, Math.min(target, Integer.MAX_VALUE)));
+        if(above < 0) above = -above - 1;
+        int below = above - 1;
+
+        while(below >= 0 || above < candidates.length) {
+            long distBelow = below >= 0 ? target - candidates[below] : Long.MAX_VALUE;
+            long distAbove = above < candidates.length ? candidates[above] - target : Long.MAX_VALUE;
+            int candidate;
+            if(distBelow <= distAbove) {
+                if(distBelow > maxOffset) break;
+                candidate = candidates[below--] - anchor;
+            } else {
+                if(distAbove > maxOffset) break;
+                candidate = candidates[above++] - anchor;
+            }
+            if(candidate >= min && file.matchesBlock(lines, candidate)) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private static void emit(EditBatch batch, Hunk hunk, Match match) {
+
+        LoadedFile file = batch.getFile();
+        int length = file.getLength();
+        int end = file.getAllLines().length();
+
+        List<String> replacement = hunk.newLines.subList(match.trimStart, hunk.newLines.size() - match.trimEnd);
+        String text = String.join("\n", replacement);
+        int first = match.line;
+        int last = first + hunk.oldLines.size() - match.trimStart - match.trimEnd - 1;
+
+        if(last < first) {
+            if(replacement.isEmpty()) return;
+            if(end == 0) {
+                batch.replace(0, 0, text);
+            } else if(first <= length) {
+                batch.replace(file.getLineStart(first), file.getLineStart(first), text + "\n");
+            } else {
+                batch.replace(end, end, "\n" + text);
+            }
+        } else if(!replacement.isEmpty()) {
+            batch.replace(file.getLineStart(first), file.getLineEnd(last), text);
+        } else if(last < length) {
+            batch.replace(file.getLineStart(first), file.getLineStart(last + 1), "");
+        } else if(first > 1) {
+            batch.replace(file.getLineEnd(first - 1), file.getLineEnd(last), "");
+        } else {
+            batch.replace(0, file.getLineEnd(last), "");
+        }
+    }
+
+
+    /**
+     * Reads a unified diff of a single file. Anything outside of hunks, such as file headers, is ignored
+     * @param reader The reader to read the diff from
+     * @param source The name of the file being read, used in error messages
+     * @return A new diff patch
+     * @throws IOException If the diff could not be read, or is not a valid unified diff
+     */
+    public static DiffPatch read(BufferedReader reader, String source) throws IOException {
+
+        List<String> lines = new ArrayList<>();
+        String line;
+        while((line = reader.readLine()) != null) {
+            lines.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+        }
+
+        List<Hunk> hunks = new ArrayList<>();
+        int index = 0;
+        while(index < lines.size()) {
+            line = lines.get(index++);
+            if(line.startsWith("--- ") && !hunks.isEmpty()) {
+                throw error(source, index, "Diffs may only change a single file!");
+            }
+            if(!line.startsWith("@@ ")) continue;
+
+            int header = index;
+            Matcher matcher = HUNK_HEADER.matcher(line);
+            if(!matcher.matches()) {
+                throw error(source, header, "Invalid hunk header!");
+            }
+            int oldStart = Integer.parseInt(matcher.group(1));
+            int oldCount = matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2));
+            int newCount = matcher.group(4) == null ? 1 : Integer.parseInt(matcher.group(4));
+
+            List<String> oldLines = new ArrayList<>();
+            List<String> newLines = new ArrayList<>();
+            int leading = 0;
+            int trailing = 0;
+            boolean changed = false;
+            boolean oldNewline = true;
+            boolean newNewline = true;
+            char last = 0;
+            while(oldLines.size() < oldCount || newLines.size() < newCount || index < lines.size() && lines.get(index).startsWith("\\")) {
+                if(index == lines.size()) {
+                    throw error(source, header, "Hunk is missing lines!");
+                }
+                line = lines.get(index++);
+                char kind = line.isEmpty() ? ' ' : line.charAt(0);
+                String content = line.isEmpty() ? "" : line.substring(1);
+                switch (kind) {
+                    case ' ' -> {
+                        oldLines.add(content);
+                        newLines.add(content);
+                        if(changed) trailing++; else leading++;
+                    }
+                    case '-' -> {
+                        oldLines.add(content);
+                        changed = true;
+                        trailing = 0;
+                    }
+                    case '+' -> {
+                        newLines.add(content);
+                        changed = true;
+                        trailing = 0;
+                    }
+                    case '\\' -> {
+                        // "\ No newline at end of file" applies to the line before it
+                        if(last != '+') oldNewline = false;
+                        if(last != '-') newNewline = false;
+                        continue;
+                    }
+                    default -> throw error(source, index, "Unexpected line in hunk!");
+                }
+                if(oldLines.size() > oldCount || newLines.size() > newCount) {
+                    throw error(source, index, "Hunk has more lines than its header declares!");
+                }
+                last = kind;
+            }
+
+            if(changed) {
+                hunks.add(new Hunk(oldStart, oldLines, newLines, leading, trailing, oldNewline, newNewline, header));
+            }
+        }
+
+        return new DiffPatch(hunks);
+    }
+
+    private static IOException error(String source, int line, String message) {
+        return new PatchReader.PatchFormatException(source + ":" + line + ": " + message, null);
+    }
+
+}
@@ -0,0 +1,131 @@
+package org.wallentines.gradle.patch;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Collects edits against the unmodified contents of a {@link LoadedFile}, so they can be checked for conflicts and
+ * applied together in a single pass instead of one at a time.
+ */
+public class EditBatch {
+
+    private static final Comparator<Edit> ORDER = Comparator.comparingInt(Edit::start)
+            .thenComparing(Edit::isInsertion, Comparator.reverseOrder())
+            .thenComparingInt(Edit::order);
+
+    private final LoadedFile file;
+    private final List<Edit> edits = new ArrayList<>();
+    private int entry;
+
+    public EditBatch(LoadedFile file) {
+        this.file = file;
+    }
+
+    public LoadedFile getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the number of the patch entry which is currently emitting edits. Used when reporting conflicts
+     * @param entry The entry number
+     */
+    public void setEntry(int entry) {
+        this.entry = entry;
+    }
+
+    public int size() {
+        return edits.size();
+    }
+
+    /**
+     * Replaces the characters between {@code start} (inclusive) and {@code end} (exclusive) of the original file
+     * @param start The start of the span to replace
+     * @param end The end of the span to replace
+     * @param text The new text
+     */
+    public void replace(int start, int end, String text) {
+        if(start == end && text.isEmpty()) {
+            return;
+        }
+        edits.add(new Edit(start, end, text, entry, edits.size()));
+    }
+
+    public void setLines(IntRange lines, String text) {
+        replace(file.getLineStart(lines.min()), file.getLineEnd(lines.max()), text);
+    }
+
+    /**
+     * Inserts a line in the same place {@link LoadedFile#insertAt(int, String)} would
+     * @param line The line to insert after
+     * @param text The contents of the new line
+     */
+    public void insertAt(int line, String text) {
+        if(line > file.getLength()) {
+            return;
+        }
+        if(line <= 0) {
+            replace(0, 0, text + "\n");
+        } else {
+            int end = file.getLineEnd(line);
+            replace(end, end, "\n" + text);
+        }
+    }
+
+    /**
+     * Sorts all collected edits, checks that none of them overlap, and applies them to the file
+     * @throws IllegalStateException If two or more edits overlap
+     */
+    public void apply() {
+
+        List<Edit> sorted = new ArrayList<>(edits);
+        sorted.sort(ORDER);
+
+        int[] from = new int[sorted.size()];
+        int[] to = new int[sorted.size()];
+        String[] text = new String[sorted.size()];
+        int count = 0;
+
+        List<String> conflicts = new ArrayList<>();
+        Edit last = null;
+        for(Edit edit : sorted) {
+            if(last != null && edit.start < last.end) {
+                if(edit.start == last.start && edit.end == last.end && edit.text.equals(last.text)) {
+                    continue;
+                }
+                conflicts.add("entry " + edit.entry + " (" + describe(edit) + ") overlaps entry " + last.entry + " (" + describe(last) + ")");
+                continue;
+            }
+
+            from[count] = edit.start;
+            to[count] = edit.end;
+            text[count] = edit.text;
+            count++;
+
+            if(!edit.isInsertion()) {
+                last = edit;
+            }
+        }
+
+        if(!conflicts.isEmpty()) {
+            throw new IllegalStateException("Found " + conflicts.size() + " conflicting edit(s)!\n - " + String.join("\n - ", conflicts));
+        }
+
+        file.applyEdits(from, to, text, count);
+        edits.clear();
+    }
+
+    private String describe(Edit edit) {
+        int min = file.getLineFromIndex(edit.start);
+        int max = file.getLineFromIndex(edit.end);
+        return min == max ? "line " + min : "lines " + min + "-" + max;
+    }
+
+
+    private record Edit(int start, int end, String text, int entry, int order) {
+        boolean isInsertion() {
+            return start == end;
+        }
+    }
+
+}
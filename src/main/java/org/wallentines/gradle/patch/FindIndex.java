@@ -0,0 +1,291 @@
+package org.wallentines.gradle.patch;
+
+import java.util.*;
+
+/**
+ * Finds every occurrence of a fixed set of literal strings in a single pass over a document using an Aho-Corasick
+ * automaton, and keeps the hit lists up to date as the document is edited by only re-scanning the edited window.
+ */
+class FindIndex {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final String[] literals;
+    private final int maxLength;
+
+    private char[][] keys = new char[16][];
+    private int[][] targets = new int[16][];
+    private int[] childCount = new int[16];
+    private int[] fail = new int[16];
+    private int[] output = new int[16];
+    private int[] dictionary = new int[16];
+    private int nodes;
+
+    private final int[][] hits;
+    private final int[] hitCount;
+
+    FindIndex(Collection<String> literals) {
+
+        List<String> unique = new ArrayList<>();
+        for(String str : literals) {
+            if(!str.isEmpty() && !ids.containsKey(str)) {
+                ids.put(str, unique.size());
+                unique.add(str);
+            }
+        }
+        this.literals = unique.toArray(new String[0]);
+        this.hits = new int[this.literals.length][];
+        this.hitCount = new int[this.literals.length];
+
+        int max = 0;
+        addNode();
+        for(int i = 0 ; i < this.literals.length ; i++) {
+            String str = this.literals[i];
+            max = Math.max(max, str.length());
+            int node = 0;
+            for(int c = 0 ; c < str.length() ; c++) {
+                int child = getChild(node, str.charAt(c));
+                if(child == -1) {
+                    child = addNode();
+                    addChild(node, str.charAt(c), child);
+                }
+                node = child;
+            }
+            output[node] = i;
+        }
+        this.maxLength = max;
+
+        buildLinks();
+    }
+
+    public boolean contains(String literal) {
+        return ids.containsKey(literal);
+    }
+
+    public boolean isEmpty() {
+        return literals.length == 0;
+    }
+
+    /**
+     * Gets the start index of every occurrence of the given literal, in ascending order
+     * @param literal The literal to look up. Must have been part of the index
+     * @return The start index of every occurrence
+     */
+    public int[] getHits(String literal) {
+        int id = ids.get(literal);
+        return Arrays.copyOf(hits[id], hitCount[id]);
+    }
+
+    /**
+     * Gets the start index of every occurrence of the given literal which lies entirely between {@code start} and
+     * {@code end}, in ascending order
+     * @param literal The literal to look up. Must have been part of the index
+     * @param start The start of the span to search
+     * @param end The end of the span to search
+     * @return The start index of every occurrence within the span
+     */
+    public int[] getHits(String literal, int start, int end) {
+        int id = ids.get(literal);
+        int first = firstAtOrAfter(hits[id], hitCount[id], start);
+        int last = firstAtOrAfter(hits[id], hitCount[id], end - literal.length() + 1);
+        return Arrays.copyOfRange(hits[id], first, Math.max(first, last));
+    }
+
+    /**
+     * Scans the entire document, replacing any previously found hits
+     * @param text The document to scan
+     */
+    public void scan(CharSequence text) {
+        for(int i = 0 ; i < literals.length ; i++) {
+            hits[i] = new int[4];
+            hitCount[i] = 0;
+        }
+        scan(text, 0, text.length(), (id, index) -> {
+            if(hitCount[id] == hits[id].length) {
+                hits[id] = Arrays.copyOf(hits[id], hitCount[id] * 2);
+            }
+            hits[id][hitCount[id]++] = index;
+        });
+    }
+
+    /**
+     * Updates the hit lists after the characters between {@code start} and {@code end} were replaced with
+     * {@code newLength} characters. Hits outside the edited span are kept (and shifted if they came after it), and
+     * only the edited span plus enough context on either side to catch literals crossing its edges is re-scanned.
+     * @param text The document, after the edit
+     * @param start The start of the edited span
+     * @param end The end of the edited span, before the edit
+     * @param newLength The length of the text which replaced the span
+     */
+    public void update(CharSequence text, int start, int end, int newLength) {
+
+        if(literals.length == 0) {
+            return;
+        }
+
+        int newEnd = start + newLength;
+        int windowStart = Math.max(0, start - maxLength + 1);
+        int windowEnd = Math.min(text.length(), newEnd + maxLength - 1);
+
+        int[][] found = new int[literals.length][];
+        int[] foundCount = new int[literals.length];
+        scan(text, windowStart, windowEnd, (id, index) -> {
+            int length = literals[id].length();
+            if(index + length <= start || index >= newEnd) return;
+            if(found[id] == null) {
+                found[id] = new int[4];
+            } else if(foundCount[id] == found[id].length) {
+                found[id] = Arrays.copyOf(found[id], foundCount[id] * 2);
+            }
+            found[id][foundCount[id]++] = index;
+        });
+
+        int delta = newLength - (end - start);
+        for(int id = 0 ; id < literals.length ; id++) {
+
+            int[] current = hits[id];
+            int count = hitCount[id];
+            int length = literals[id].length();
+
+            int before = firstAtOrAfter(current, count, start - length + 1);
+            int after = firstAtOrAfter(current, count, end);
+            int added = foundCount[id];
+
+            int newCount = before + added + (count - after);
+            int[] out = newCount > current.length ? Arrays.copyOf(current, Math.max(newCount, current.length * 2)) : current;
+
+            System.arraycopy(current, after, out, before + added, count - after);
+            if(added > 0) {
+                Arrays.sort(found[id], 0, added);
+                System.arraycopy(found[id], 0, out, before, added);
+            }
+            if(delta != 0) {
+                for(int i = before + added ; i < newCount ; i++) {
+                    out[i] += delta;
+                }
+            }
+
+            hits[id] = out;
+            hitCount[id] = newCount;
+        }
+    }
+
+    private void scan(CharSequence text, int from, int to, HitConsumer consumer) {
+
+        int state = 0;
+        for(int i = from ; i < to ; i++) {
+            char c = text.charAt(i);
+            int next;
+            while((next = getChild(state, c)) == -1 && state != 0) {
+                state = fail[state];
+            }
+            state = next == -1 ? 0 : next;
+
+            for(int node = output[state] == -1 ? dictionary[state] : state ; node > 0 ; node = dictionary[node]) {
+                int id = output[node];
+                consumer.accept(id, i - literals[id].length() + 1);
+            }
+        }
+    }
+
+    private void buildLinks() {
+
+        int[] queue = new int[nodes];
+        int head = 0;
+        int tail = 0;
+        for(int i = 0 ; i < childCount[0] ; i++) {
+            int child = targets[0][i];
+            fail[child] = 0;
+            dictionary[child] = 0;
+            queue[tail++] = child;
+        }
+
+        while(head < tail) {
+            int node = queue[head++];
+            for(int i = 0 ; i < childCount[node] ; i++) {
+                char c = keys[node][i];
+                int child = targets[node][i];
+
+                int state = fail[node];
+                int next;
+                while((next = getChild(state, c)) == -1 && state != 0) {
+                    state = fail[state];
+                }
+                fail[child] = next == -1 || next == child ? 0 : next;
+                dictionary[child] = output[fail[child]] != -1 ? fail[child] : dictionary[fail[child]];
+
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    private int addNode() {
+        if(nodes == keys.length) {
+            int size = nodes * 2;
+            keys = Arrays.copyOf(keys, size);
+            targets = Arrays.copyOf(targets, size);
+            childCount = Arrays.copyOf(childCount, size);
+            fail = Arrays.copyOf(fail, size);
+            output = Arrays.copyOf(output, size);
+            dictionary = Arrays.copyOf(dictionary, size);
+        }
+        keys[nodes] = new char[2];
+        targets[nodes] = new int[2];
+        output[nodes] = -1;
+        return nodes++;
+    }
+
+    private int getChild(int node, char c) {
+        char[] nodeKeys = keys[node];
+        int count = childCount[node];
+        int low = 0;
+        int high = count - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            char key = nodeKeys[mid];
+            if(key < c) {
+                low = mid + 1;
+            } else if(key > c) {
+                high = mid - 1;
+            } else {
+                return targets[node][mid];
+            }
+        }
+        return -1;
+    }
+
+    private void addChild(int node, char c, int child) {
+        int count = childCount[node];
+        if(count == keys[node].length) {
+            keys[node] = Arrays.copyOf(keys[node], count * 2);
+            targets[node] = Arrays.copyOf(targets[node], count * 2);
+        }
+        int index = count;
+        while(index > 0 && keys[node][index - 1] > c) {
+            keys[node][index] = keys[node][index - 1];
+            targets[node][index] = targets[node][index - 1];
+            index--;
+        }
+        keys[node][index] = c;
+        targets[node][index] = child;
+        childCount[node] = count + 1;
+    }
+
+    private static int firstAtOrAfter(int[] values, int count, int value) {
+        int low = 0;
+        int high = count;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(values[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private interface HitConsumer {
+        void accept(int id, int index);
+    }
+
+}
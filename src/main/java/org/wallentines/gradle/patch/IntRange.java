@@ -81,6 +81,7 @@ public record IntRange(int min, int max) implements Comparable<IntRange> {
 
     @Override
     public int compareTo(@NotNull IntRange o) {
-        return o.min - min;
+        int out = Integer.compare(o.min, min);
+        return out != 0 ? out : Integer.compare(o.max, max);
     }
 }
@@ -0,0 +1,171 @@
+package org.wallentines.gradle.patch;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the hash of every line of a document, computed the same way as {@link String#hashCode()}, so lines can be
+ * found by their contents without scanning the document's text. Lines are numbered starting at 1.
+ */
+class LineHashIndex {
+
+    private static final long BASE = 0x9E3779B97F4A7C15L;
+    private static final int[] EMPTY = new int[0];
+
+    private int[] hashes;
+    private int size;
+
+    // Lines chained by hash, built the first time a single line is looked up after an edit. Each chain is in order
+    private int[] heads;
+    private int[] next;
+
+    private LineHashIndex(int[] hashes, int size) {
+        this.hashes = hashes;
+        this.size = size;
+    }
+
+    public static LineHashIndex build(CharSequence text) {
+
+        int[] hashes = new int[Math.max(16, text.length() / 32)];
+        int size = 0;
+        int hash = 0;
+        for(int i = 0 ; i < text.length() ; i++) {
+            char c = text.charAt(i);
+            if(c == '\n') {
+                if(size == hashes.length) hashes = Arrays.copyOf(hashes, size * 2);
+                hashes[size++] = hash;
+                hash = 0;
+            } else {
+                hash = 31 * hash + c;
+            }
+        }
+        if(size == hashes.length) hashes = Arrays.copyOf(hashes, size + 1);
+        hashes[size++] = hash;
+
+        return new LineHashIndex(hashes, size);
+    }
+
+    /**
+     * Creates a copy of this index which can be updated independently. The lookup table is shared until either copy is
+     * edited, as it is rebuilt rather than modified
+     */
+    public LineHashIndex copy() {
+        LineHashIndex out = new LineHashIndex(Arrays.copyOf(hashes, size), size);
+        out.heads = heads;
+        out.next = next;
+        return out;
+    }
+
+    static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        for(int i = start ; i < end ; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash;
+    }
+
+    public int getLineCount() {
+        return size;
+    }
+
+    public int getHash(int line) {
+        return hashes[line - 1];
+    }
+
+    /**
+     * Finds every line with the given hash
+     * @return The line numbers, in ascending order
+     */
+    public int[] getLines(int hash) {
+
+        if(heads == null) {
+            buildTable();
+        }
+
+        int[] out = EMPTY;
+        int count = 0;
+        for(int line = heads[bucket(hash)] ; line != 0 ; line = next[line]) {
+            if(hashes[line - 1] != hash) continue;
+            if(count == out.length) out = Arrays.copyOf(out, Math.max(4, count * 2));
+            out[count++] = line;
+        }
+        return count == out.length ? out : Arrays.copyOf(out, count);
+    }
+
+    /**
+     * Finds every line at which the given sequence of line hashes starts, by rolling a hash of the sequence over the
+     * document's line hashes
+     * @return The first line of each occurrence, in ascending order. Occurrences may overlap
+     */
+    public int[] findBlock(int[] block) {
+
+        int length = block.length;
+        if(length == 0 || length > size) {
+            return EMPTY;
+        }
+        if(length == 1) {
+            return getLines(block[0]);
+        }
+
+        long target = 0;
+        long rolling = 0;
+        long power = 1;
+        for(int i = 0 ; i < length ; i++) {
+            target = target * BASE + block[i];
+            rolling = rolling * BASE + hashes[i];
+            if(i > 0) power *= BASE;
+        }
+
+        int[] out = EMPTY;
+        int count = 0;
+        for(int i = 0 ; ; i++) {
+            if(rolling == target && Arrays.equals(hashes, i, i + length, block, 0, length)) {
+                if(count == out.length) out = Arrays.copyOf(out, Math.max(4, count * 2));
+                out[count++] = i + 1;
+            }
+            if(i + length >= size) break;
+            rolling = (rolling - hashes[i] * power) * BASE + hashes[i + length];
+        }
+        return count == out.length ? out : Arrays.copyOf(out, count);
+    }
+
+    /**
+     * Updates the index after lines {@code first} through {@code last} were replaced
+     * @param first The first replaced line
+     * @param last The last replaced line, before the edit
+     * @param replacement The hashes of the lines which replaced them
+     */
+    public void replace(int first, int last, int[] replacement) {
+
+        int removed = last - first + 1;
+        int newSize = size - removed + replacement.length;
+        if(newSize > hashes.length) {
+            hashes = Arrays.copyOf(hashes, Math.max(newSize, hashes.length * 2));
+        }
+        if(removed != replacement.length) {
+            System.arraycopy(hashes, last, hashes, first - 1 + replacement.length, size - last);
+        }
+        System.arraycopy(replacement, 0, hashes, first - 1, replacement.length);
+        size = newSize;
+
+        heads = null;
+        next = null;
+    }
+
+    private void buildTable() {
+
+        heads = new int[Integer.highestOneBit(Math.max(16, size * 2 - 1)) << 1];
+        next = new int[size + 1];
+
+        // Insert from the bottom up, so each chain is in ascending order
+        for(int line = size ; line > 0 ; line--) {
+            int bucket = bucket(hashes[line - 1]);
+            next[line] = heads[bucket];
+            heads[bucket] = line;
+        }
+    }
+
+    private int bucket(int hash) {
+        return (hash ^ (hash >>> 16)) & (heads.length - 1);
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.wallentines.gradle.patch;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the offsets at which each line of a document ends, in a growable primitive array. The last entry is always
+ * the length of the document. Lines are numbered starting at 1.
+ */
+class LineIndex {
+
+    private int[] ends;
+    private int size;
+
+    LineIndex(int[] ends, int size) {
+        this.ends = ends;
+        this.size = size;
+    }
+
+    public static LineIndex build(CharSequence text) {
+
+        int[] ends = new int[Math.max(16, text.length() / 32)];
+        int size = 0;
+        if(text instanceof String str) {
+            int index = -1;
+            while((index = str.indexOf('\n', index + 1)) != -1) {
+                if(size == ends.length) ends = Arrays.copyOf(ends, size * 2);
+                ends[size++] = index;
+            }
+        } else {
+            for(int i = 0 ; i < text.length() ; i++) {
+                if(text.charAt(i) == '\n') {
+                    if(size == ends.length) ends = Arrays.copyOf(ends, size * 2);
+                    ends[size++] = i;
+                }
+            }
+        }
+        if(size == ends.length) ends = Arrays.copyOf(ends, size + 1);
+        ends[size++] = text.length();
+
+        return new LineIndex(ends, size);
+    }
+
+    public LineIndex copy() {
+        return new LineIndex(Arrays.copyOf(ends, size), size);
+    }
+
+    public int getLineCount() {
+        return size;
+    }
+
+    public int getLineStart(int line) {
+        if(line <= 1) {
+            return 0;
+        }
+        return ends[line - 2] + 1;
+    }
+
+    public int getLineEnd(int line) {
+        if(line < 1) {
+            line = 1;
+        }
+        if(line > size) {
+            throw new IndexOutOfBoundsException("Line " + line + " out of bounds for length " + size);
+        }
+        return ends[line - 1];
+    }
+
+    /**
+     * Determines which line contains the given index. An index pointing at a line feed belongs to the line which that
+     * feed terminates.
+     * @param index The index within the document
+     * @return The line number containing the index
+     */
+    public int getLineFromIndex(int index) {
+        return firstEndAtOrAfter(index) + 1;
+    }
+
+    /**
+     * Updates the index after the characters between {@code start} and {@code end} were replaced with {@code text}
+     * @param start The start of the replaced span
+     * @param end The end of the replaced span, before the edit
+     * @param text The text which replaced the span
+     */
+    public void replace(int start, int end, CharSequence text) {
+
+        int first = firstEndAtOrAfter(start);
+        int last = firstEndAtOrAfter(end);
+
+        int added = 0;
+        for(int i = 0 ; i < text.length() ; i++) {
+            if(text.charAt(i) == '\n') added++;
+        }
+
+        int removed = last - first;
+        int newSize = size - removed + added;
+        if(newSize > ends.length) {
+            ends = Arrays.copyOf(ends, Math.max(newSize, ends.length * 2));
+        }
+        if(removed != added) {
+            System.arraycopy(ends, last, ends, first + added, size - last);
+        }
+
+        int index = first;
+        for(int i = 0 ; i < text.length() ; i++) {
+            if(text.charAt(i) == '\n') {
+                ends[index++] = start + i;
+            }
+        }
+
+        int delta = text.length() - (end - start);
+        size = newSize;
+        if(delta != 0) {
+            for(int i = first + added ; i < size ; i++) {
+                ends[i] += delta;
+            }
+        }
+    }
+
+    private int firstEndAtOrAfter(int index) {
+        int low = 0;
+        int high = size - 1;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(ends[mid] < index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+}
@@ -5,59 +5,232 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import java.util.*;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public interface LineSupplier {
 
-    Collection<IntRange> getLines(LoadedFile file);
+    RangeSet getLines(LoadedFile file);
+
+    default void collectLiterals(Collection<String> out) { }
 
     static LineSupplier single(int line) {
-        return file -> Collections.singleton(new IntRange(file.validateLine(line)));
+        return new Single(line);
     }
 
     static LineSupplier multiple(Collection<Integer> lines) {
-        return file -> lines.stream().map(file::validateLine).map(IntRange::new).toList();
+        return new Multiple(List.copyOf(lines));
     }
 
     static LineSupplier range(IntRange range) {
-        return file -> List.of(range);
+        return new Range(range);
     }
 
     static LineSupplier all() {
-        return file -> List.of(new IntRange(1, file.getLength()));
+        return All.INSTANCE;
     }
 
     static LineSupplier find(String find, IntRange offset) {
+        return new Find(find, offset);
+    }
+
+    static LineSupplier findRegex(Pattern find, IntRange offset) {
+        return new FindRegex(find, offset);
+    }
+
+    /**
+     * Selects every occurrence of the given lines, one after another. Each line must match a whole line of the file
+     * exactly. Lines containing line feeds are split
+     */
+    static LineSupplier findBlock(List<String> lines, IntRange offset) {
+        List<String> split = new ArrayList<>(lines.size());
+        for(String line : lines) {
+            split.addAll(Arrays.asList(line.split("\n", -1)));
+        }
+        return new FindBlock(List.copyOf(split), offset);
+    }
+
+    static LineSupplier multi(List<LineSupplier> children) {
+        return new Multi(List.copyOf(children));
+    }
+
+    record Single(int line) implements LineSupplier {
+        @Override
+        public RangeSet getLines(LoadedFile file) {
+            int valid = file.validateLine(line);
+            return RangeSet.of(valid, valid);
+        }
+    }
 
-        return file -> {
-            TreeSet<IntRange> out = new TreeSet<>();
-            for(IntRange i : file.find(find)) {
-                out.add(new IntRange(i.min() + offset.min(), i.max() + offset.max()));
+    record Multiple(List<Integer> lines) implements LineSupplier {
+        @Override
+        public RangeSet getLines(LoadedFile file) {
+            RangeSet out = new RangeSet();
+            for(int line : lines) {
+                int valid = file.validateLine(line);
+                out.add(valid, valid);
             }
             return out;
-        };
+        }
     }
 
-    static LineSupplier findRegex(Pattern find, IntRange offset) {
+    record Range(IntRange range) implements LineSupplier {
+        @Override
+        public RangeSet getLines(LoadedFile file) {
+            return RangeSet.of(range);
+        }
+    }
 
-        return file -> {
-            TreeSet<IntRange> out = new TreeSet<>();
-            for(IntRange i : file.find(find)) {
-                out.add(new IntRange(i.min() + offset.min(), i.max() + offset.max()));
+    enum All implements LineSupplier {
+        INSTANCE;
+
+        @Override
+        public RangeSet getLines(LoadedFile file) {
+            return RangeSet.of(1, file.getLength());
+        }
+    }
+
+    /**
+     * A line rule which searches the text of the file. The lines it matches are cached by the file, and only searched
+     * for again after an edit which could change them
+     */
+    interface Search extends LineSupplier {
+
+        /**
+         * Identifies what is searched for. Searches with equal keys find the same matches, regardless of their offsets
+         */
+        Object key();
+
+        IntRange offset();
+
+        /**
+         * Finds the lines spanned by each match, without applying the offset
+         */
+        RangeSet search(LoadedFile file);
+
+        /**
+         * Determines whether a match could include any part of some newly inserted text
+         * @param file The file, after the text was inserted
+         * @param start The start of the new text
+         * @param end The end of the new text
+         * @param firstLine The first line of the new text
+         * @param lastLine The last line of the new text
+         */
+        boolean mayMatch(LoadedFile file, int start, int end, int firstLine, int lastLine);
+
+        @Override
+        default RangeSet getLines(LoadedFile file) {
+            IntRange offset = offset();
+            RangeSet out = new RangeSet();
+            file.search(this).forEach((min, max) -> out.add(min + offset.min(), max + offset.max()));
+            return out;
+        }
+    }
+
+    record Find(String find, IntRange offset) implements Search {
+
+        @Override
+        public Object key() {
+            return List.of("find", find);
+        }
+
+        @Override
+        public RangeSet search(LoadedFile file) {
+            RangeSet out = new RangeSet();
+            for(int index : file.findAll(find)) {
+                out.add(file.getLineFromIndex(index), file.getLineFromIndex(index + find.length()));
             }
             return out;
-        };
+        }
+
+        @Override
+        public boolean mayMatch(LoadedFile file, int start, int end, int firstLine, int lastLine) {
+            if(find.isEmpty()) return true;
+            int from = Math.max(0, start - find.length() + 1);
+            int to = Math.min(file.getAllLines().length(), end + find.length() - 1);
+            return file.findAll(find, from, to).length > 0;
+        }
+
+        @Override
+        public void collectLiterals(Collection<String> out) {
+            out.add(find);
+        }
     }
 
-    static LineSupplier multi(List<LineSupplier> children) {
+    record FindRegex(Pattern find, IntRange offset) implements Search {
+
+        @Override
+        public Object key() {
+            return List.of("find_regex", find.pattern(), find.flags());
+        }
+
+        @Override
+        public RangeSet search(LoadedFile file) {
+            RangeSet out = new RangeSet();
+            Matcher matcher = find.matcher(file.getAllLines());
+            while(matcher.find()) {
+                out.add(file.getLineFromIndex(matcher.start()), file.getLineFromIndex(matcher.end()));
+            }
+            return out;
+        }
+
+        /**
+         * A pattern may look arbitrarily far around a match, so any edit may change its matches
+         */
+        @Override
+        public boolean mayMatch(LoadedFile file, int start, int end, int firstLine, int lastLine) {
+            return true;
+        }
+    }
+
+    record FindBlock(List<String> lines, IntRange offset) implements Search {
 
-        return file -> {
-            List<IntRange> out = new ArrayList<>();
+        public FindBlock {
+            if(lines.isEmpty()) {
+                throw new IllegalArgumentException("A block must contain at least one line!");
+            }
+        }
+
+        @Override
+        public Object key() {
+            return List.of("find_block", lines);
+        }
+
+        @Override
+        public RangeSet search(LoadedFile file) {
+            RangeSet out = new RangeSet();
+            for(int line : file.findBlock(lines)) {
+                out.add(line, line + lines.size() - 1);
+            }
+            return out;
+        }
+
+        @Override
+        public boolean mayMatch(LoadedFile file, int start, int end, int firstLine, int lastLine) {
+            int last = Math.min(lastLine, file.getLength() - lines.size() + 1);
+            for(int line = Math.max(1, firstLine - lines.size() + 1) ; line <= last ; line++) {
+                if(file.matchesBlock(lines, line)) return true;
+            }
+            return false;
+        }
+    }
+
+    record Multi(List<LineSupplier> children) implements LineSupplier {
+        @Override
+        public RangeSet getLines(LoadedFile file) {
+            RangeSet out = new RangeSet();
             for(LineSupplier supp : children) {
                 out.addAll(supp.getLines(file));
             }
             return out;
-        };
+        }
+
+        @Override
+        public void collectLiterals(Collection<String> out) {
+            for(LineSupplier supp : children) {
+                supp.collectLiterals(out);
+            }
+        }
     }
 
 
@@ -94,6 +267,19 @@ public interface LineSupplier {
             if(obj.has("find_regex")) {
                 return findRegex(Pattern.compile(obj.get("find_regex").getAsString(), Pattern.MULTILINE), offset);
             }
+
+            if(obj.has("find_block")) {
+                JsonElement block = obj.get("find_block");
+                List<String> lines = new ArrayList<>();
+                if(block.isJsonArray()) {
+                    for(JsonElement line : block.getAsJsonArray()) {
+                        lines.add(line.getAsString());
+                    }
+                } else {
+                    lines.add(block.getAsString());
+                }
+                return findBlock(lines, offset);
+            }
         }
 
         throw new IllegalArgumentException("Don't know how to read " + ele + " as a line serializer!");
@@ -1,27 +1,77 @@
 package org.wallentines.gradle.patch;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class LoadedFile {
 
-    private String data;
-    private final List<Integer> lineFeeds = new ArrayList<>();
+    private static final int BUFFER_SIZE = 8192;
+    private static final long MAP_THRESHOLD = 1L << 24;
+
+    private final PieceTable data;
+    private LineIndex lineIndex;
+    private LineHashIndex lineHashes;
+    private final SelectionCache selections = new SelectionCache();
+    private int version;
+    private FindIndex findIndex;
     private final TreeSet<Integer> toRemove = new TreeSet<>();
     private final SortedMap<Integer, List<String>> toInsert = new TreeMap<>();
     private final SortedMap<Integer, String> overrides = new TreeMap<>();
+    private String lineSeparator = "\n";
+    private boolean trailingNewline = false;
 
     public LoadedFile(String data) {
+        this.data = new PieceTable(data);
+    }
+
+    private LoadedFile(String data, LineIndex lineIndex) {
+        this(new PieceTable(data), lineIndex);
+    }
+
+    private LoadedFile(PieceTable data, LineIndex lineIndex) {
         this.data = data;
+        this.lineIndex = lineIndex;
+    }
 
-        int currentIndex = 0;
-        while((currentIndex = data.indexOf('\n', currentIndex)) != -1) {
-            lineFeeds.add(currentIndex++);
+    /**
+     * Creates a copy of this file which can be edited independently. The text itself is shared rather than copied,
+     * along with any line indexes which have already been built, so a file which is patched in several different ways
+     * only needs to be read and indexed once. See {@link #index()}
+     * @return A new file with the same contents and pending edits
+     */
+    public LoadedFile fork() {
+
+        LoadedFile out = new LoadedFile(data.copy(), lineIndex == null ? null : lineIndex.copy());
+        out.lineHashes = lineHashes == null ? null : lineHashes.copy();
+        out.toRemove.addAll(toRemove);
+        for(Map.Entry<Integer, List<String>> ent : toInsert.entrySet()) {
+            out.toInsert.put(ent.getKey(), new ArrayList<>(ent.getValue()));
         }
+        out.overrides.putAll(overrides);
+        out.lineSeparator = lineSeparator;
+        out.trailingNewline = trailingNewline;
+        return out;
+    }
 
-        lineFeeds.add(data.length());
+    /**
+     * Builds the indexes used to find lines by number and by contents, so they can be shared by every fork of this file
+     * rather than being built again by each one
+     */
+    public void index() {
+        getLineIndex();
+        getLineHashes();
     }
 
     public int validateLine(int line) {
@@ -29,7 +79,7 @@ public class LoadedFile {
     }
 
     public int getLength() {
-        return lineFeeds.size();
+        return getLineIndex().getLineCount();
     }
 
     public CharSequence getLine(int line) {
@@ -57,66 +107,113 @@ public class LoadedFile {
 
     public void setLines(IntRange lines, String newLine) {
 
-        StringBuilder out = new StringBuilder();
+        replace(getLineStart(lines.min()), getLineEnd(lines.max()), newLine);
+    }
 
-        int offset = 0;
-        int insertIndex = lines.min() - 1;
-        int oldLength = getLines(lines).length();
+    void replace(int start, int end, String text) {
 
-        if(lines.min() > 1) {
-            out.append(getLines(new IntRange(1, lines.min()-1)));
-            out.append("\n");
-            offset = lineFeeds.get(insertIndex - 1) + 1;
+        int first = 0, last = 0;
+        if(lineHashes != null || !selections.isEmpty()) {
+            first = getLineFromIndex(start);
+            last = getLineFromIndex(end);
         }
 
-        out.append(newLine);
-        if(lines.max() < getLength()) {
-            out.append('\n');
+        getLineIndex().replace(start, end, text);
+        data.replace(start, end, text);
+        if(findIndex != null) {
+            findIndex.update(data, start, end, text.length());
         }
-
-        // Correct newlines
-        if(lines.max() < getLength()) {
-            out.append(getLines(new IntRange(lines.max() + 1, getLength())));
+        if(lineHashes != null) {
+            int[] replacement = new int[getLineFromIndex(start + text.length()) - first + 1];
+            for(int i = 0 ; i < replacement.length ; i++) {
+                replacement[i] = LineHashIndex.hash(data, getLineStart(first + i), getLineEnd(first + i));
+            }
+            lineHashes.replace(first, last, replacement);
         }
-
-        List<Integer> newLineFeeds = new ArrayList<>();
-        int index = -1;
-        while((index = newLine.indexOf('\n', index)) != -1) {
-            newLineFeeds.add(offset + index);
-            index++;
+        version++;
+        if(!selections.isEmpty()) {
+            selections.edited(this, start, start + text.length(), first, last, getLineFromIndex(start + text.length()));
         }
-        newLineFeeds.add(offset + newLine.length());
+    }
 
-        if(newLineFeeds.size() < lines.length()) {
-            for(int i = 0 ; i < lines.length() - newLineFeeds.size() ; i++) {
-                lineFeeds.remove(insertIndex + i);
-            }
-        } else if(newLineFeeds.size() > lines.length()) {
-            for(int i = 0 ; i < newLineFeeds.size() - lines.length() ; i++) {
-                lineFeeds.add(insertIndex + i, 0);
-            }
-        }
+    /**
+     * Gets a number which changes whenever the text of the file is edited. Pending insertions and removals, which are
+     * only applied when the file is written, do not change it
+     */
+    public int getVersion() {
+        return version;
+    }
 
-        for(int i = 0 ; i < newLineFeeds.size() ; i++) {
-            lineFeeds.set(insertIndex + i, newLineFeeds.get(i));
+    /**
+     * Finds the lines matched by the given search, reusing the result of an earlier identical search if no edit since
+     * then could have changed it
+     */
+    RangeSet search(LineSupplier.Search search) {
+        return selections.get(search, this);
+    }
+
+    void appendTo(StringBuilder builder, int start, int end) {
+        data.appendTo(builder, start, end);
+    }
+
+    /**
+     * Finds every occurrence of each of the given strings in a single pass over the file. Later calls to
+     * {@link #find(String)} for any of those strings are answered from the index, which is kept up to date as the file
+     * is edited.
+     * @param literals The strings to index
+     */
+    public void indexLiterals(Collection<String> literals) {
+        FindIndex index = new FindIndex(literals);
+        if(index.isEmpty()) {
+            findIndex = null;
+            return;
         }
+        index.scan(data);
+        findIndex = index;
+    }
 
-        if(newLine.length() != oldLength) {
-            int difference = newLine.length() - oldLength;
-            for(int i = insertIndex + newLineFeeds.size() ; i < getLength() ; i++) {
-                lineFeeds.set(i, lineFeeds.get(i) + difference);
-            }
+    void applyEdits(int[] from, int[] to, String[] text, int edits) {
+
+        data.replaceAll(from, to, text, edits);
+        lineIndex = null;
+        findIndex = null;
+        lineHashes = null;
+        version++;
+        selections.clear();
+    }
+
+    int indexOf(String str, int from) {
+        return data.indexOf(str, from);
+    }
+
+    int[] findAll(String str) {
+        return findAll(str, 0, data.length());
+    }
+
+    /**
+     * Finds the start index of every occurrence of the given string which lies entirely between {@code start} and
+     * {@code end}, including overlapping occurrences
+     */
+    int[] findAll(String str, int start, int end) {
+        if(findIndex != null && findIndex.contains(str)) {
+            return findIndex.getHits(str, start, end);
         }
 
-        this.data = out.toString();
+        int[] out = new int[4];
+        int count = 0;
+        int index = start;
+        while(index <= end && (index = data.indexOf(str, index, end)) != -1) {
+            if(count == out.length) out = Arrays.copyOf(out, count * 2);
+            out[count++] = index;
+            index++;
+        }
+        return Arrays.copyOf(out, count);
     }
 
     public Collection<IntRange> find(String substr) {
-        int index = 0;
         Set<IntRange> out = new HashSet<>();
-        while((index = data.indexOf(substr, index)) != -1) {
+        for(int index : findAll(substr)) {
             out.add(new IntRange(getLineFromIndex(index), getLineFromIndex(index + substr.length())));
-            index++;
         }
         return out;
     }
@@ -133,31 +230,95 @@ public class LoadedFile {
         return out;
     }
 
-    private int getLineStart(int line) {
-        if(line <= 1) {
-            return 0;
+    private LineIndex getLineIndex() {
+        if(lineIndex == null) {
+            lineIndex = LineIndex.build(data.toString());
+        }
+        return lineIndex;
+    }
+
+    private LineHashIndex getLineHashes() {
+        if(lineHashes == null) {
+            lineHashes = LineHashIndex.build(data);
         }
+        return lineHashes;
+    }
+
+    /**
+     * Gets the hash of the given line, which is the same as the {@link String#hashCode()} of its contents
+     */
+    int getLineHash(int line) {
+        return getLineHashes().getHash(line);
+    }
 
-        return lineFeeds.get(line - 2) + 1;
+    /**
+     * Finds every line whose hash is the given hash. The lines' contents still need to be checked
+     * @return The line numbers, in ascending order
+     */
+    int[] getLinesWithHash(int hash) {
+        return getLineHashes().getLines(hash);
     }
 
-    private int getLineEnd(int line) {
-        if(line < 1) {
-            line = 1;
+    boolean lineEquals(int line, String text) {
+        int start = getLineStart(line);
+        if(getLineEnd(line) - start != text.length()) {
+            return false;
+        }
+        for(int i = 0 ; i < text.length() ; i++) {
+            if(data.charAt(start + i) != text.charAt(i)) return false;
         }
-        return lineFeeds.get(line - 1);
+        return true;
     }
 
-    private int getLineFromIndex(int index) {
+    /**
+     * Finds every place where the given lines appear one after another, using an index of the hash of each line. The
+     * index is built the first time it is needed, and kept up to date as the file is edited.
+     * @param lines The lines to find, without line feeds
+     * @return The first line of each occurrence, in ascending order
+     */
+    int[] findBlock(List<String> lines) {
+
+        int[] block = new int[lines.size()];
+        for(int i = 0 ; i < block.length ; i++) {
+            block[i] = lines.get(i).hashCode();
+        }
+
+        int[] found = getLineHashes().findBlock(block);
+        int count = 0;
+        for(int line : found) {
+            if(matchesBlock(lines, line)) {
+                found[count++] = line;
+            }
+        }
+        return count == found.length ? found : Arrays.copyOf(found, count);
+    }
 
-        int line = 1;
-        for(int i : lineFeeds) {
-            if(i >= index) {
-                break;
+    /**
+     * Determines whether the given lines appear one after another, starting at the given line
+     */
+    boolean matchesBlock(List<String> lines, int line) {
+        if(line < 1 || line + lines.size() - 1 > getLength()) {
+            return false;
+        }
+        for(int i = 0 ; i < lines.size() ; i++) {
+            String expected = lines.get(i);
+            if(getLineHash(line + i) != expected.hashCode() || !lineEquals(line + i, expected)) {
+                return false;
             }
-            line++;
         }
-        return line;
+        return true;
+    }
+
+    int getLineStart(int line) {
+        return getLineIndex().getLineStart(line);
+    }
+
+    int getLineEnd(int line) {
+        return getLineIndex().getLineEnd(line);
+    }
+
+    int getLineFromIndex(int index) {
+        return getLineIndex().getLineFromIndex(index);
     }
 
     public void insertAt(int line, String newLine) {
@@ -168,43 +329,210 @@ public class LoadedFile {
         });
     }
 
+    /**
+     * Applies pending insertions and removals to the text of the file, so later searches and edits see them. The file
+     * is left as it would be if it was written and read again. Used between the layers of a layered patch set, where
+     * each layer must see the result of the one before it
+     */
+    public void applyPending() {
+
+        if(toInsert.isEmpty() && toRemove.isEmpty()) {
+            return;
+        }
+
+        StringBuilder out = new StringBuilder(data.length() + 64);
+        boolean empty = true;
+        for(int i = 0 ; i <= getLength() ; i++) {
+
+            if(i > 0 && !toRemove.contains(i)) {
+                if(!empty) {
+                    out.append('\n');
+                }
+                data.appendTo(out, getLineStart(i), getLineEnd(i));
+                empty = false;
+            }
+            List<String> inserted = toInsert.get(i);
+            if(inserted != null) {
+                for(String s : inserted) {
+                    if(!empty) {
+                        out.append('\n');
+                    }
+                    out.append(s);
+                    empty = false;
+                }
+            }
+        }
+
+        toInsert.clear();
+        toRemove.clear();
+        applyEdits(new int[] { 0 }, new int[] { data.length() }, new String[] { out.toString() }, 1);
+        if(empty) {
+            trailingNewline = false;
+        }
+    }
+
+    public String getLineSeparator() {
+        return lineSeparator;
+    }
+
+    public void setLineSeparator(String lineSeparator) {
+        this.lineSeparator = lineSeparator;
+    }
+
+    public boolean hasTrailingNewline() {
+        return trailingNewline;
+    }
+
+    public void setTrailingNewline(boolean trailingNewline) {
+        this.trailingNewline = trailingNewline;
+    }
+
     public void write(OutputStream os) throws IOException {
+        write(os, StandardCharsets.UTF_8);
+    }
 
-        StringBuilder toWrite = new StringBuilder();
+    public void write(OutputStream os, Charset charset) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, charset), BUFFER_SIZE);
+        write(writer);
+        writer.flush();
+    }
+
+    public void write(WritableByteChannel channel, Charset charset) throws IOException {
+        Writer writer = Channels.newWriter(channel, charset.newEncoder(), BUFFER_SIZE);
+        write(writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes the patched file line by line, using this file's line separator, and including any pending insertions
+     * and removals. The text is written in slices, and is never assembled in memory.
+     * @param writer The writer to write to
+     * @throws IOException If writing fails
+     */
+    public void write(Writer writer) throws IOException {
+
+        boolean empty = true;
         for(int i = 0 ; i <= getLength() ; i++) {
 
             if(i > 0 && !toRemove.contains(i)) {
-                if(!toWrite.isEmpty()) {
-                    toWrite.append("\n");
+                if(!empty) {
+                    writer.write(lineSeparator);
                 }
-                toWrite.append(getLine(i));
+                data.writeTo(writer, getLineStart(i), getLineEnd(i));
+                empty = false;
             }
-            if(toInsert.containsKey(i)) {
-                for(String s : toInsert.get(i)) {
-                    if(!toWrite.isEmpty()) {
-                        toWrite.append("\n");
+            List<String> inserted = toInsert.get(i);
+            if(inserted != null) {
+                for(String s : inserted) {
+                    if(!empty) {
+                        writer.write(lineSeparator);
                     }
-                    toWrite.append(s);
+                    writer.write(lineSeparator.equals("\n") ? s : s.replace("\n", lineSeparator));
+                    empty = false;
                 }
             }
         }
-        os.write(toWrite.toString().getBytes());
+        if(trailingNewline && !empty) {
+            writer.write(lineSeparator);
+        }
     }
 
+    /**
+     * Reads a file, normalizing its line separators to {@code \n}. The first line separator found, and whether the
+     * file ends with one, are remembered so {@link #write(Writer)} can reproduce them.
+     * @param stream The reader to read from
+     * @return A new loaded file
+     * @throws IOException If reading fails
+     */
     public static LoadedFile read(BufferedReader stream) throws IOException {
 
-        String line;
-        StringBuilder out = new StringBuilder();
-        while((line = stream.readLine()) != null) {
+        char[] buffer = new char[BUFFER_SIZE];
+        int length = 0;
+        int read;
+        while((read = stream.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if(length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+
+        return parse(buffer, length);
+    }
 
-            if(!out.isEmpty()){
-                out.append('\n');
+    /**
+     * Reads a file with a single bulk read (or by mapping it into memory if it is large), and decodes it with the given
+     * charset. Line separators are normalized and the line index is built in the same pass over the decoded text.
+     * @param file The file to read
+     * @param charset The charset to decode the file with
+     * @return A new loaded file
+     * @throws IOException If reading fails
+     */
+    public static LoadedFile read(Path file, Charset charset) throws IOException {
+
+        ByteBuffer bytes;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE) {
+                throw new IOException("File " + file + " is too large to load!");
+            }
+            if(size >= MAP_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while(bytes.hasRemaining() && channel.read(bytes) != -1);
+                bytes.flip();
             }
+        }
 
-            out.append(line);
+        CharBuffer chars = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(bytes);
 
+        if(chars.hasArray() && chars.arrayOffset() == 0) {
+            return parse(chars.array(), chars.limit());
+        }
+        char[] array = new char[chars.remaining()];
+        chars.get(array);
+        return parse(array, array.length);
+    }
+
+    /**
+     * Normalizes the line separators of the given text in place, building the line index as it goes
+     */
+    private static LoadedFile parse(char[] text, int length) {
+
+        int[] ends = new int[Math.max(16, length / 32)];
+        int lines = 0;
+        String separator = null;
+        boolean trailing = false;
+
+        int out = 0;
+        for(int i = 0 ; i < length ; i++) {
+            char c = text[i];
+            if(c == '\r' || c == '\n') {
+                boolean crlf = c == '\r' && i + 1 < length && text[i + 1] == '\n';
+                if(separator == null) {
+                    separator = crlf ? "\r\n" : String.valueOf(c);
+                }
+                if(crlf) i++;
+                if(i == length - 1) {
+                    trailing = true;
+                    break;
+                }
+                if(lines == ends.length) ends = Arrays.copyOf(ends, lines * 2);
+                ends[lines++] = out;
+                text[out++] = '\n';
+            } else {
+                text[out++] = c;
+            }
         }
+        if(lines == ends.length) ends = Arrays.copyOf(ends, lines + 1);
+        ends[lines++] = out;
 
-        return new LoadedFile(out.toString());
+        LoadedFile file = new LoadedFile(new String(text, 0, out), new LineIndex(ends, lines));
+        file.lineSeparator = separator == null ? "\n" : separator;
+        file.trailingNewline = trailing;
+        return file;
     }
 }
@@ -0,0 +1,124 @@
+package org.wallentines.gradle.patch;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Records the content hash of each generated source file, along with its size and modification time when it was
+ * written. As long as the size and modification time still match, the hash can be trusted without reading the file
+ * again. Each line of the manifest is in the form {@code <hash> <size> <modified> <relative path>}.
+ */
+class OutputManifest {
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public void put(String path, Entry entry) {
+        entries.put(path, entry);
+    }
+
+    public void putAll(OutputManifest other) {
+        entries.putAll(other.entries);
+    }
+
+    public void remove(String path) {
+        entries.remove(path);
+    }
+
+    public void retainAll(Set<String> paths) {
+        entries.keySet().retainAll(paths);
+    }
+
+    /**
+     * A single generated file
+     * @param hash The SHA-256 hash of the file's contents
+     * @param size The size of the file when it was written
+     * @param modified The modification time of the file when it was written
+     */
+    public record Entry(String hash, long size, long modified) {
+
+        public static Entry of(String hash, File file) {
+            return new Entry(hash, file.length(), file.lastModified());
+        }
+
+        /**
+         * Reads an entry in the form written by {@link #format()}
+         * @return An entry, or null if the value is not a valid entry
+         */
+        public static Entry parse(String value) {
+            String[] parts = value.split(" ", 3);
+            if(parts.length != 3) return null;
+            try {
+                return new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        /**
+         * @return This entry in the form {@code <hash> <size> <modified>}
+         */
+        public String format() {
+            return hash + " " + size + " " + modified;
+        }
+
+        /**
+         * Determines whether the given file still looks like it did when this entry was recorded
+         */
+        public boolean matches(File file) {
+            return file.isFile() && file.length() == size && file.lastModified() == modified;
+        }
+    }
+
+    /**
+     * Reads a manifest. Missing or unreadable manifests are treated as empty, as every entry can be recomputed
+     * @param file The manifest file
+     * @return A manifest
+     */
+    public static OutputManifest read(File file) {
+
+        OutputManifest out = new OutputManifest();
+        if(file == null || !file.isFile()) {
+            return out;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 4);
+                if(parts.length != 4) continue;
+                out.entries.put(parts[3], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+            }
+        } catch (IOException | NumberFormatException ex) {
+            return new OutputManifest();
+        }
+        return out;
+    }
+
+    public void write(File file) throws IOException {
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(dir.toPath());
+
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try(Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                for(Map.Entry<String, Entry> ent : entries.entrySet()) {
+                    writer.write(ent.getValue().format() + " " + ent.getKey() + "\n");
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+}
@@ -0,0 +1,23 @@
+package org.wallentines.gradle.patch;
+
+/**
+ * Something which can be applied to a {@link LoadedFile}, i.e. a JSON {@link PatchFile} or a unified {@link DiffPatch}
+ */
+public interface Patch {
+
+    /**
+     * Patches the given file
+     * @param file The file to patch
+     * @param stats If not null, the time spent on and lines matched by each entry will be added to it
+     */
+    void patch(LoadedFile file, PatchStats stats);
+
+    /**
+     * Patches the given file, applying all edits in a single pass
+     * @param file The file to patch
+     * @param stats If not null, the time spent on and lines matched by each entry will be added to it
+     * @throws IllegalStateException If two or more edits overlap
+     */
+    void patchBatched(LoadedFile file, PatchStats stats);
+
+}
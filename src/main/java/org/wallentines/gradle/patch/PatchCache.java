@@ -0,0 +1,354 @@
+package org.wallentines.gradle.patch;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Caches compiled patch files by the hash of their contents. Compiled patch files are kept in memory for the lifetime
+ * of the class loader (i.e. the Gradle daemon), and written to a directory in a compact binary form, so unchanged patch
+ * files never need to be parsed as JSON again.
+ */
+public class PatchCache {
+
+    private static final int MAGIC = 0x47504346;
+    private static final int FORMAT_VERSION = 3;
+    private static final int MAX_MEMORY_ENTRIES = 4096;
+
+    private static final Map<String, PatchFile> MEMORY = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PatchFile> eldest) {
+            return size() > MAX_MEMORY_ENTRIES;
+        }
+    });
+
+    private final File directory;
+
+    /**
+     * Creates a patch cache which stores compiled patch files in the given directory
+     * @param directory The directory to store compiled patch files in, or null to only cache in memory
+     */
+    public PatchCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Empties the in-memory cache shared by every patch cache, so the next load of each patch file comes from its
+     * compiled form or its source
+     */
+    public static void clearMemory() {
+        MEMORY.clear();
+    }
+
+    /**
+     * Loads the patch at the given path. Unified diffs ({@code .patch} files) are parsed directly, as reading one costs
+     * as much as hashing it. Anything else is loaded as a JSON patch file using {@link #load(File)}
+     * @param file The patch to load
+     * @return A patch
+     * @throws IOException If the patch could not be read
+     */
+    public Patch loadPatch(File file) throws IOException {
+        if(file.getName().endsWith(".patch")) {
+            try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                return DiffPatch.read(reader, file.getPath());
+            }
+        }
+        return load(file);
+    }
+
+    /**
+     * Loads the patch file at the given path, either from the cache, or by parsing it
+     * @param file The patch file to load
+     * @return A compiled patch file
+     * @throws IOException If the patch file could not be read
+     */
+    public PatchFile load(File file) throws IOException {
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        String hash = hash(bytes);
+
+        PatchFile out = MEMORY.get(hash);
+        if(out != null) {
+            return out;
+        }
+
+        File compiled = directory == null ? null : new File(directory, hash + ".bin");
+        if(compiled != null && compiled.isFile()) {
+            try(DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(compiled)))) {
+                out = decode(dis);
+            } catch (IOException | RuntimeException ex) {
+                out = null;
+            }
+        }
+
+        if(out == null) {
+            try(Reader reader = new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8)) {
+                out = PatchFile.read(reader, file.getPath());
+            } catch (IllegalArgumentException | IllegalStateException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+            if(compiled != null && isEncodable(out)) {
+                write(out, compiled);
+            }
+        }
+
+        MEMORY.put(hash, out);
+        return out;
+    }
+
+    private void write(PatchFile patchFile, File compiled) throws IOException {
+
+        if(!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create patch cache directory at " + directory.getAbsolutePath());
+        }
+
+        File temp = File.createTempFile(compiled.getName(), ".tmp", directory);
+        try {
+            try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                encode(patchFile, dos);
+            }
+            Files.move(temp.toPath(), compiled.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    static String hash(byte[] bytes) {
+        return HexFormat.of().formatHex(digest().digest(bytes));
+    }
+
+    /**
+     * @return A new SHA-256 digest, as used for the hashes of patch files and outputs
+     */
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available!", ex);
+        }
+    }
+
+
+    // Binary form
+
+    private static final int SUPPLIER_ALL = 0;
+    private static final int SUPPLIER_SINGLE = 1;
+    private static final int SUPPLIER_MULTIPLE = 2;
+    private static final int SUPPLIER_RANGE = 3;
+    private static final int SUPPLIER_FIND = 4;
+    private static final int SUPPLIER_FIND_REGEX = 5;
+    private static final int SUPPLIER_MULTI = 6;
+    private static final int SUPPLIER_FIND_BLOCK = 7;
+
+    static boolean isEncodable(PatchFile file) {
+        for(PatchEntry ent : file.getEntries()) {
+            if(PatchEntry.Type.byAction(ent.getAction()) == null) return false;
+            for(LineSupplier supp : ent.getLines()) {
+                if(!isEncodable(supp)) return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEncodable(LineSupplier supp) {
+        if(supp instanceof LineSupplier.Multi multi) {
+            for(LineSupplier child : multi.children()) {
+                if(!isEncodable(child)) return false;
+            }
+            return true;
+        }
+        return supp instanceof LineSupplier.All || supp instanceof LineSupplier.Single
+                || supp instanceof LineSupplier.Multiple || supp instanceof LineSupplier.Range
+                || supp instanceof LineSupplier.Find || supp instanceof LineSupplier.FindRegex
+                || supp instanceof LineSupplier.FindBlock;
+    }
+
+    static void encode(PatchFile file, DataOutput out) throws IOException {
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(file.getEntries().size());
+        for(PatchEntry ent : file.getEntries()) {
+
+            PatchEntry.Action action = ent.getAction();
+            PatchEntry.Type type = PatchEntry.Type.byAction(action);
+            if(type == null) {
+                throw new IllegalArgumentException("Unable to encode action " + action + "!");
+            }
+            out.writeByte(type.ordinal());
+            switch (type) {
+                case INSERT -> writeString(out, ((PatchEntry.Insert) action).value());
+                case INSERT_BEFORE -> writeString(out, ((PatchEntry.InsertBefore) action).value());
+                case SET -> writeString(out, ((PatchEntry.Set) action).value());
+                case REPLACE -> {
+                    writeString(out, ((PatchEntry.Replace) action).find());
+                    writeString(out, ((PatchEntry.Replace) action).replace());
+                }
+                case REPLACE_REGEX -> {
+                    writePattern(out, ((PatchEntry.RegRep) action).find());
+                    writeString(out, ((PatchEntry.RegRep) action).replace());
+                    out.writeBoolean(((PatchEntry.RegRep) action).perLine());
+                }
+            }
+
+            out.writeInt(ent.getLines().size());
+            for(LineSupplier supp : ent.getLines()) {
+                encode(supp, out);
+            }
+        }
+    }
+
+    static PatchFile decode(DataInput in) throws IOException {
+
+        if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unrecognized compiled patch format!");
+        }
+
+        int entries = in.readInt();
+        List<PatchEntry> out = new ArrayList<>(entries);
+        for(int i = 0 ; i < entries ; i++) {
+
+            PatchEntry.Type type = PatchEntry.Type.values()[in.readUnsignedByte()];
+            PatchEntry.Action action = switch (type) {
+                case INSERT -> new PatchEntry.Insert(readString(in));
+                case INSERT_BEFORE -> new PatchEntry.InsertBefore(readString(in));
+                case SET -> new PatchEntry.Set(readString(in));
+                case REPLACE -> new PatchEntry.Replace(readString(in), readString(in));
+                case REPLACE_REGEX -> new PatchEntry.RegRep(readPattern(in), readString(in), in.readBoolean());
+            };
+
+            int suppliers = in.readInt();
+            List<LineSupplier> lines = new ArrayList<>(suppliers);
+            for(int j = 0 ; j < suppliers ; j++) {
+                lines.add(decodeSupplier(in));
+            }
+
+            out.add(new PatchEntry(action, lines));
+        }
+
+        return new PatchFile(out);
+    }
+
+    private static void encode(LineSupplier supp, DataOutput out) throws IOException {
+
+        if(supp instanceof LineSupplier.All) {
+            out.writeByte(SUPPLIER_ALL);
+        } else if(supp instanceof LineSupplier.Single single) {
+            out.writeByte(SUPPLIER_SINGLE);
+            out.writeInt(single.line());
+        } else if(supp instanceof LineSupplier.Multiple multiple) {
+            out.writeByte(SUPPLIER_MULTIPLE);
+            out.writeInt(multiple.lines().size());
+            for(int line : multiple.lines()) {
+                out.writeInt(line);
+            }
+        } else if(supp instanceof LineSupplier.Range range) {
+            out.writeByte(SUPPLIER_RANGE);
+            writeRange(out, range.range());
+        } else if(supp instanceof LineSupplier.Find find) {
+            out.writeByte(SUPPLIER_FIND);
+            writeString(out, find.find());
+            writeRange(out, find.offset());
+        } else if(supp instanceof LineSupplier.FindRegex find) {
+            out.writeByte(SUPPLIER_FIND_REGEX);
+            writePattern(out, find.find());
+            writeRange(out, find.offset());
+        } else if(supp instanceof LineSupplier.FindBlock find) {
+            out.writeByte(SUPPLIER_FIND_BLOCK);
+            out.writeInt(find.lines().size());
+            for(String line : find.lines()) {
+                writeString(out, line);
+            }
+            writeRange(out, find.offset());
+        } else if(supp instanceof LineSupplier.Multi multi) {
+            out.writeByte(SUPPLIER_MULTI);
+            out.writeInt(multi.children().size());
+            for(LineSupplier child : multi.children()) {
+                encode(child, out);
+            }
+        } else {
+            throw new IllegalArgumentException("Unable to encode line supplier " + supp + "!");
+        }
+    }
+
+    private static LineSupplier decodeSupplier(DataInput in) throws IOException {
+
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case SUPPLIER_ALL:
+                return LineSupplier.all();
+            case SUPPLIER_SINGLE:
+                return LineSupplier.single(in.readInt());
+            case SUPPLIER_MULTIPLE: {
+                int count = in.readInt();
+                List<Integer> lines = new ArrayList<>(count);
+                for(int i = 0 ; i < count ; i++) {
+                    lines.add(in.readInt());
+                }
+                return LineSupplier.multiple(lines);
+            }
+            case SUPPLIER_RANGE:
+                return LineSupplier.range(readRange(in));
+            case SUPPLIER_FIND:
+                return LineSupplier.find(readString(in), readRange(in));
+            case SUPPLIER_FIND_REGEX:
+                return LineSupplier.findRegex(readPattern(in), readRange(in));
+            case SUPPLIER_FIND_BLOCK: {
+                int count = in.readInt();
+                List<String> lines = new ArrayList<>(count);
+                for(int i = 0 ; i < count ; i++) {
+                    lines.add(readString(in));
+                }
+                return LineSupplier.findBlock(lines, readRange(in));
+            }
+            case SUPPLIER_MULTI: {
+                int count = in.readInt();
+                List<LineSupplier> children = new ArrayList<>(count);
+                for(int i = 0 ; i < count ; i++) {
+                    children.add(decodeSupplier(in));
+                }
+                return LineSupplier.multi(children);
+            }
+            default:
+                throw new IOException("Unknown line supplier type " + type + "!");
+        }
+    }
+
+    private static void writeString(DataOutput out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writePattern(DataOutput out, Pattern pattern) throws IOException {
+        writeString(out, pattern.pattern());
+        out.writeInt(pattern.flags());
+    }
+
+    private static Pattern readPattern(DataInput in) throws IOException {
+        String pattern = readString(in);
+        return Pattern.compile(pattern, in.readInt());
+    }
+
+    private static void writeRange(DataOutput out, IntRange range) throws IOException {
+        out.writeInt(range.min());
+        out.writeInt(range.max());
+    }
+
+    private static IntRange readRange(DataInput in) throws IOException {
+        int min = in.readInt();
+        return new IntRange(min, in.readInt());
+    }
+
+}
@@ -0,0 +1,406 @@
+package org.wallentines.gradle.patch;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * Patches source files without Gradle. Each source file is read, has all of its patches applied, and is written as a
+ * separate task on an executor, so reading, patching and writing different files overlap. Output files are only
+ * replaced if their contents changed.
+ */
+public class PatchEngine {
+
+    static final List<String> PATCH_EXTENSIONS = List.of(".json", ".patch");
+
+    private final ExecutorService executor;
+    private final PatchCache cache;
+    private Charset charset = StandardCharsets.UTF_8;
+    private boolean batchEdits = false;
+    private int fuzz = DiffPatch.DEFAULT_FUZZ;
+    private int maxOffset = Integer.MAX_VALUE;
+    private int maxPending = Runtime.getRuntime().availableProcessors() * 4;
+
+    /**
+     * Creates a patch engine
+     * @param executor The executor to patch files on. It is not shut down by the engine. See {@link #createExecutor()}
+     * @param compiledPatchDir The directory to store compiled patch files in, or null to only cache them in memory
+     */
+    public PatchEngine(ExecutorService executor, File compiledPatchDir) {
+        this.executor = executor;
+        this.cache = new PatchCache(compiledPatchDir);
+    }
+
+    /**
+     * Creates an executor suited to patching files. On Java 21 or later, each file is patched on its own virtual
+     * thread, as much of the time is spent reading and writing. Otherwise, there is one thread per processor
+     */
+    public static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /**
+     * Sets the charset used to read source files and write patched files. Defaults to UTF-8
+     */
+    public PatchEngine setCharset(Charset charset) {
+        this.charset = charset;
+        return this;
+    }
+
+    /**
+     * Sets whether each patch file's entries are resolved against the unpatched file and applied in a single pass. See
+     * {@link Patch#patchBatched(LoadedFile, PatchStats)}
+     */
+    public PatchEngine setBatchEdits(boolean batchEdits) {
+        this.batchEdits = batchEdits;
+        return this;
+    }
+
+    /**
+     * Sets how far unified diff hunks may be from where they expect to be. See {@link DiffPatch#withSearch(int, int)}
+     */
+    public PatchEngine setSearch(int fuzz, int maxOffset) {
+        if(fuzz < 0 || maxOffset < 0) {
+            throw new IllegalArgumentException("Fuzz and max offset must not be negative!");
+        }
+        this.fuzz = fuzz;
+        this.maxOffset = maxOffset;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of files which may be in memory at once. Defaults to four per processor
+     */
+    public PatchEngine setMaxPending(int maxPending) {
+        if(maxPending < 1) {
+            throw new IllegalArgumentException("At least one file must be allowed to be pending!");
+        }
+        this.maxPending = maxPending;
+        return this;
+    }
+
+    /**
+     * The outcome of patching a tree of files
+     * @param files The number of source files which had patches
+     * @param failures A message for each file which could not be patched, sorted
+     */
+    public record Result(int files, List<String> failures) {
+
+        public boolean isSuccessful() {
+            return failures.isEmpty();
+        }
+    }
+
+    /**
+     * Patches every source file which has a patch. A patch file patches the source with the same path relative to the
+     * source root, with its extension replaced by {@code .java}. If several patch roots contain a patch for the same
+     * source, they are applied in the order of the roots.
+     * @param sourceRoot The directory containing the sources
+     * @param patchRoots The directories containing patches, in the order they are applied
+     * @param outputRoot The directory to write patched files to
+     * @return The number of files patched, and any failures
+     * @throws IOException If the patch roots could not be searched
+     */
+    public Result patchTree(Path sourceRoot, List<Path> patchRoots, Path outputRoot) throws IOException {
+
+        Map<String, List<Path>> patches = findPatches(patchRoots);
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>(patches.size());
+
+        // Bounds how many files are held in memory while waiting to be patched or written
+        Semaphore pending = new Semaphore(maxPending);
+        try {
+            for(Map.Entry<String, List<Path>> ent : patches.entrySet()) {
+                Path source = sourceRoot.resolve(ent.getKey());
+                Path output = outputRoot.resolve(ent.getKey());
+                pending.acquire();
+                try {
+                    futures.add(executor.submit(() -> {
+                        try {
+                            patchFile(source, ent.getValue(), output);
+                        } catch (RuntimeException ex) {
+                            failures.add(ex.getMessage());
+                        } finally {
+                            pending.release();
+                        }
+                    }));
+                } catch (RejectedExecutionException ex) {
+                    pending.release();
+                    throw ex;
+                }
+            }
+            for(Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            for(Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw new IllegalStateException("Interrupted while patching " + sourceRoot + "!");
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Unable to patch " + sourceRoot + "!", ex.getCause());
+        }
+
+        List<String> sorted = new ArrayList<>(failures);
+        Collections.sort(sorted);
+        return new Result(patches.size(), sorted);
+    }
+
+    /**
+     * Patches a single file on the calling thread
+     * @param source The file to patch
+     * @param patches The patches to apply, in order
+     * @param output The file to write the patched file to
+     * @throws IllegalStateException If the file could not be read, patched or written
+     */
+    public void patchFile(Path source, List<Path> patches, Path output) {
+        LoadedFile file = readSource(source.toFile(), charset);
+        for(int i = 0 ; i < patches.size() ; i++) {
+            if(i > 0) {
+                file.applyPending();
+            }
+            applyPatch(cache, patches.get(i).toFile(), file, batchEdits, fuzz, maxOffset, null);
+        }
+        writeOutput(file, output.toFile(), charset, null, null);
+    }
+
+    /**
+     * Finds every patch in the given directories, grouped by the source they patch. Directories which do not exist are
+     * skipped
+     * @return The patches for each source's relative path, in the order of their roots, sorted by path
+     * @throws IOException If a directory could not be searched
+     */
+    static Map<String, List<Path>> findPatches(List<Path> patchRoots) throws IOException {
+
+        Map<String, List<Path>> out = new TreeMap<>();
+        for(int layer = 0 ; layer < patchRoots.size() ; layer++) {
+            Path root = patchRoots.get(layer);
+            if(!Files.isDirectory(root)) continue;
+
+            List<Path> files;
+            try(Stream<Path> stream = Files.walk(root)) {
+                files = stream.filter(Files::isRegularFile).sorted().toList();
+            }
+            Map<String, String> names = new HashMap<>();
+            for(Path file : files) {
+                String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                String sourceName = getSourceName(name);
+                if(sourceName.equals(name)) continue;
+
+                String other = names.put(sourceName, name);
+                if(other != null) {
+                    throw new IllegalStateException("Found multiple patches for " + sourceName + " in " + root + ": " + other + " and " + name + "!");
+                }
+                out.computeIfAbsent(sourceName, k -> new ArrayList<>()).add(file);
+            }
+        }
+        return out;
+    }
+
+    static String getSourceName(String patchName) {
+        for(String extension : PATCH_EXTENSIONS) {
+            if(patchName.endsWith(extension)) {
+                return patchName.substring(0, patchName.length() - extension.length()) + ".java";
+            }
+        }
+        return patchName;
+    }
+
+    static LoadedFile readSource(File sourceFile, Charset charset) {
+        try {
+            return LoadedFile.read(sourceFile.toPath(), charset);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read source file " + sourceFile + "! " + ex.getMessage(), ex);
+        }
+    }
+
+    static void applyPatch(PatchCache cache, File patch, LoadedFile loadedFile, boolean batchEdits, int fuzz, int maxOffset, PatchStats stats) {
+
+        long start = System.nanoTime();
+        Patch pf;
+        try {
+
+            pf = cache.loadPatch(patch);
+            if(pf instanceof DiffPatch diff) {
+                pf = diff.withSearch(fuzz, maxOffset);
+            }
+
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read patch file " + patch + "! " + ex.getMessage(), ex);
+        }
+
+        long parsed = System.nanoTime();
+        try {
+            if(batchEdits) {
+                pf.patchBatched(loadedFile, stats);
+            } else {
+                pf.patch(loadedFile, stats);
+            }
+        } catch (RuntimeException ex) {
+            throw new IllegalStateException("Unable to apply patch file " + patch + "! " + ex.getMessage(), ex);
+        }
+
+        if(stats != null) {
+            stats.setParseTime(parsed - start);
+            stats.setPatchTime(System.nanoTime() - parsed);
+        }
+    }
+
+    static OutputManifest.Entry writeOutput(LoadedFile loadedFile, File outFile, Charset charset, OutputManifest.Entry previous, PatchStats stats) {
+
+        long start = System.nanoTime();
+        long size;
+        boolean written;
+        String hash;
+        try {
+
+            File dir = outFile.getAbsoluteFile().getParentFile();
+            Files.createDirectories(dir.toPath());
+
+            // The output is hashed while it is written to a temporary file, which replaces the output if it changed
+            File temp = File.createTempFile(outFile.getName(), ".tmp", dir);
+            try {
+                MessageDigest digest = PatchCache.digest();
+                try(OutputStream os = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), digest)) {
+                    loadedFile.write(os, charset);
+                }
+                hash = HexFormat.of().formatHex(digest.digest());
+                size = temp.length();
+                written = replaceIfChanged(outFile, temp, hash, previous);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to generate source file " + outFile + "! " + ex.getMessage(), ex);
+        }
+
+        if(stats != null) {
+            stats.setWriteTime(System.nanoTime() - start);
+            stats.setBytesWritten(written ? size : 0);
+        }
+
+        return OutputManifest.Entry.of(hash, outFile);
+    }
+
+    /**
+     * Moves a newly written file over an output file, unless the output already has exactly the same content. The
+     * previous manifest entry is trusted if the output has not been touched since it was recorded, otherwise the files
+     * are compared directly.
+     * @return Whether the output was replaced
+     */
+    private static boolean replaceIfChanged(File outFile, File temp, String hash, OutputManifest.Entry previous) throws IOException {
+
+        if(previous != null && previous.matches(outFile)) {
+            if(previous.hash().equals(hash)) {
+                return false;
+            }
+        } else if(outFile.isFile() && outFile.length() == temp.length()
+                && Files.mismatch(outFile.toPath(), temp.toPath()) == -1) {
+            return false;
+        }
+
+        Files.move(temp.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Patches a tree of sources from the command line
+     * <pre>
+     * PatchEngine [options] &lt;source dir&gt; &lt;output dir&gt; &lt;patch dir&gt;...
+     *   --encoding &lt;charset&gt;  The charset of the source files (default: UTF-8)
+     *   --batch               Apply each patch file's entries in a single pass
+     *   --fuzz &lt;n&gt;            Context lines unified diff hunks may ignore (default: 2)
+     *   --max-offset &lt;n&gt;      Lines unified diff hunks may move (default: unlimited)
+     *   --threads &lt;n&gt;         Patch on a fixed number of threads instead of the default executor
+     *   --cache &lt;dir&gt;         Store compiled patch files in a directory
+     * </pre>
+     */
+    public static void main(String[] args) {
+
+        List<String> paths = new ArrayList<>();
+        Charset charset = StandardCharsets.UTF_8;
+        boolean batchEdits = false;
+        int fuzz = DiffPatch.DEFAULT_FUZZ;
+        int maxOffset = Integer.MAX_VALUE;
+        int threads = 0;
+        File cacheDir = null;
+        try {
+            for(int i = 0 ; i < args.length ; i++) {
+                switch (args[i]) {
+                    case "--encoding" -> charset = Charset.forName(option(args, ++i));
+                    case "--batch" -> batchEdits = true;
+                    case "--fuzz" -> fuzz = Integer.parseInt(option(args, ++i));
+                    case "--max-offset" -> maxOffset = Integer.parseInt(option(args, ++i));
+                    case "--threads" -> threads = Integer.parseInt(option(args, ++i));
+                    case "--cache" -> cacheDir = new File(option(args, ++i));
+                    default -> {
+                        if(args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + args[i] + "!");
+                        }
+                        paths.add(args[i]);
+                    }
+                }
+            }
+            if(paths.size() < 3) {
+                throw new IllegalArgumentException("Expected a source directory, an output directory and at least one patch directory!");
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Usage: PatchEngine [--encoding <charset>] [--batch] [--fuzz <n>] [--max-offset <n>] [--threads <n>] [--cache <dir>] <source dir> <output dir> <patch dir>...");
+            System.exit(2);
+            return;
+        }
+
+        List<Path> patchRoots = new ArrayList<>();
+        for(String path : paths.subList(2, paths.size())) {
+            patchRoots.add(Path.of(path));
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = threads > 0 ? Executors.newFixedThreadPool(threads) : createExecutor();
+        Result result;
+        try {
+            PatchEngine engine = new PatchEngine(executor, cacheDir)
+                    .setCharset(charset)
+                    .setBatchEdits(batchEdits)
+                    .setSearch(fuzz, maxOffset);
+            result = engine.patchTree(Path.of(paths.get(0)), patchRoots, Path.of(paths.get(1)));
+        } catch (IOException | RuntimeException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for(String failure : result.failures()) {
+            System.err.println(failure);
+        }
+        System.out.printf("Patched %d of %d file(s) in %d ms%n", result.files() - result.failures().size(), result.files(), (System.nanoTime() - start) / 1_000_000);
+        if(!result.isSuccessful()) {
+            System.exit(1);
+        }
+    }
+
+    private static String option(String[] args, int index) {
+        if(index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1] + "!");
+        }
+        return args[index];
+    }
+
+}
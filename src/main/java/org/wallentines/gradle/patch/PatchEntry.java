@@ -7,6 +7,7 @@ import com.google.gson.JsonObject;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -21,21 +22,69 @@ public class PatchEntry {
         this.lines = List.copyOf(lines);
     }
 
+    public Action getAction() {
+        return action;
+    }
+
+    public List<LineSupplier> getLines() {
+        return lines;
+    }
+
+    /**
+     * Evaluates every line rule against the given file and combines their results
+     * @param file The file to select lines in
+     * @return The selected lines
+     */
+    public RangeSet select(LoadedFile file) {
+        if(lines.size() == 1) {
+            return lines.get(0).getLines(file);
+        }
+        RangeSet out = new RangeSet();
+        for(LineSupplier supp : lines) {
+            out.addAll(supp.getLines(file));
+        }
+        return out;
+    }
+
     public void patch(LoadedFile file) {
+        apply(file, select(file));
+    }
+
+    /**
+     * Applies this entry's action to the given lines, which should have been selected by {@link #select(LoadedFile)}
+     * @param file The file to patch
+     * @param lines The selected lines
+     */
+    public void apply(LoadedFile file, RangeSet lines) {
+        // Apply from the bottom up, so edits which add or remove lines do not move the remaining ranges
+        lines.forEachDescending((min, max) -> action.patch(file, new IntRange(min, max)));
+    }
+
+    public void collectLiterals(Collection<String> out) {
         for(LineSupplier supp : lines) {
-            for(IntRange range : supp.getLines(file)) {
-                action.patch(file, range);
-            }
+            supp.collectLiterals(out);
         }
+        action.collectLiterals(out);
+    }
+
+    public void collect(EditBatch batch) {
+        collect(batch, select(batch.getFile()));
+    }
+
+    public void collect(EditBatch batch, RangeSet lines) {
+        lines.forEach((min, max) -> action.collect(batch, new IntRange(min, max)));
     }
 
     public enum Type {
 
-        INSERT("insert", ele -> new Insert(ele.get("value").getAsString())),
-        INSERT_BEFORE("insert_before", ele -> new InsertBefore(ele.get("value").getAsString())),
-        SET("set", ele -> new Set(ele.get("value").getAsString())),
-        REPLACE("replace", ele -> new Replace(ele.get("find").getAsString(), ele.get("replace").getAsString())),
-        REPLACE_REGEX("replace_regex", ele -> new RegRep(Pattern.compile(ele.get("find").getAsString(), Pattern.MULTILINE), ele.get("replace").getAsString()));
+        INSERT("insert", ele -> new Insert(getString(ele, "value"))),
+        INSERT_BEFORE("insert_before", ele -> new InsertBefore(getString(ele, "value"))),
+        SET("set", ele -> new Set(getString(ele, "value"))),
+        REPLACE("replace", ele -> new Replace(getString(ele, "find"), getString(ele, "replace"))),
+        REPLACE_REGEX("replace_regex", ele -> new RegRep(
+                Pattern.compile(getString(ele, "find"), Pattern.MULTILINE),
+                getString(ele, "replace"),
+                ele.has("per_line") && ele.get("per_line").getAsBoolean()));
 
         final String id;
         final Function<JsonObject, Action> actionSerializer;
@@ -55,10 +104,21 @@ public class PatchEntry {
             }
             return null;
         }
+
+        public static Type byAction(Action action) {
+            if(action instanceof Insert) return INSERT;
+            if(action instanceof InsertBefore) return INSERT_BEFORE;
+            if(action instanceof Set) return SET;
+            if(action instanceof Replace) return REPLACE;
+            if(action instanceof RegRep) return REPLACE_REGEX;
+            return null;
+        }
     }
 
     public interface Action {
         void patch(LoadedFile file, IntRange lines);
+        void collect(EditBatch batch, IntRange lines);
+        default void collectLiterals(Collection<String> out) { }
     }
 
     public record Insert(String value) implements Action {
@@ -66,6 +126,11 @@ public class PatchEntry {
         public void patch(LoadedFile file, IntRange lines) {
             file.insertAt(lines.max() + 1, value);
         }
+
+        @Override
+        public void collect(EditBatch batch, IntRange lines) {
+            batch.insertAt(lines.max() + 1, value);
+        }
     }
 
     public record InsertBefore(String value) implements Action {
@@ -73,6 +138,11 @@ public class PatchEntry {
         public void patch(LoadedFile file, IntRange lines) {
             file.insertAt(lines.min(), value);
         }
+
+        @Override
+        public void collect(EditBatch batch, IntRange lines) {
+            batch.insertAt(lines.min(), value);
+        }
     }
 
 
@@ -81,33 +151,141 @@ public class PatchEntry {
         public void patch(LoadedFile file, IntRange lines) {
             file.setLines(lines, value);
         }
+
+        @Override
+        public void collect(EditBatch batch, IntRange lines) {
+            batch.setLines(lines, value);
+        }
     }
 
 
     public record Replace(String find, String replace) implements Action {
         @Override
         public void patch(LoadedFile file, IntRange lines) {
-            for(IntRange ir : file.find(find)) {
-                if(ir.isWithin(lines)) {
-                    file.setLines(ir, file.getLines(ir).toString().replace(find, replace));
+
+            int start = file.getLineStart(lines.min());
+            int end = file.getLineEnd(lines.max());
+
+            int first = -1;
+            int next = start;
+            StringBuilder builder = new StringBuilder();
+            for(int index : file.findAll(find, start, end)) {
+                if(index < next) continue;
+                if(first == -1) {
+                    first = index;
+                } else {
+                    file.appendTo(builder, next, index);
                 }
+                builder.append(replace);
+                next = index + Math.max(1, find.length());
+            }
+
+            if(first != -1) {
+                file.replace(first, next, builder.toString());
             }
         }
+
+        @Override
+        public void collect(EditBatch batch, IntRange lines) {
+            LoadedFile file = batch.getFile();
+            int start = file.getLineStart(lines.min());
+            int end = file.getLineEnd(lines.max());
+            int next = start;
+            for(int index : file.findAll(find, start, end)) {
+                if(index < next) continue;
+                batch.replace(index, index + find.length(), replace);
+                next = index + Math.max(1, find.length());
+            }
+        }
+
+        @Override
+        public void collectLiterals(Collection<String> out) {
+            out.add(find);
+        }
     }
 
-    public record RegRep(Pattern find, String replace) implements Action {
+    /**
+     * Replaces every match of a regular expression within the selected lines. The pattern only ever sees the selected
+     * lines, as if they were the whole input, but they are matched in place rather than copied out of the file. In
+     * per-line mode, each line is matched on its own, so matches can never span more than one line.
+     */
+    public static final class RegRep implements Action {
+
+        private final Pattern find;
+        private final String replace;
+        private final boolean perLine;
+        private final Replacement replacement;
+
+        public RegRep(Pattern find, String replace) {
+            this(find, replace, false);
+        }
+
+        public RegRep(Pattern find, String replace, boolean perLine) {
+            this.find = find;
+            this.replace = replace;
+            this.perLine = perLine;
+            this.replacement = Replacement.parse(replace, find.matcher("").groupCount());
+        }
+
+        public Pattern find() {
+            return find;
+        }
+
+        public String replace() {
+            return replace;
+        }
+
+        public boolean perLine() {
+            return perLine;
+        }
+
         @Override
         public void patch(LoadedFile file, IntRange lines) {
 
-            CharSequence in = file.getLines(lines);
-            Matcher matcher = find.matcher(in);
             StringBuilder builder = new StringBuilder();
-            while(matcher.find()) {
-                matcher.appendReplacement(builder, replace);
+            int[] span = { -1, -1 };
+            forEachMatch(file, lines, matcher -> {
+                if(span[0] == -1) {
+                    span[0] = matcher.start();
+                } else {
+                    file.appendTo(builder, span[1], matcher.start());
+                }
+                replacement.appendTo(builder, matcher);
+                span[1] = matcher.end();
+            });
+
+            if(span[0] != -1) {
+                file.replace(span[0], span[1], builder.toString());
             }
-            if(!builder.isEmpty()) {
-                matcher.appendTail(builder);
-                file.setLines(lines, builder.toString());
+        }
+
+        @Override
+        public void collect(EditBatch batch, IntRange lines) {
+
+            StringBuilder builder = new StringBuilder();
+            forEachMatch(batch.getFile(), lines, matcher -> {
+                builder.setLength(0);
+                replacement.appendTo(builder, matcher);
+                batch.replace(matcher.start(), matcher.end(), builder.toString());
+            });
+        }
+
+        private void forEachMatch(LoadedFile file, IntRange lines, Consumer<Matcher> consumer) {
+
+            Matcher matcher = find.matcher(file.getAllLines());
+            matcher.useAnchoringBounds(true).useTransparentBounds(false);
+            if(perLine) {
+                for(int line = lines.min() ; line <= lines.max() ; line++) {
+                    matcher.region(file.getLineStart(line), file.getLineEnd(line));
+                    while(matcher.find()) {
+                        consumer.accept(matcher);
+                    }
+                }
+            } else {
+                matcher.region(file.getLineStart(lines.min()), file.getLineEnd(lines.max()));
+                while(matcher.find()) {
+                    consumer.accept(matcher);
+                }
             }
         }
     }
@@ -115,7 +293,7 @@ public class PatchEntry {
 
     public static PatchEntry load(JsonObject obj) {
 
-        String typeId = obj.get("type").getAsString();
+        String typeId = getString(obj, "type");
         Type t = Type.byId(typeId);
         if(t == null) {
             throw new IllegalArgumentException("Unknown entry type " + typeId + "!");
@@ -123,6 +301,9 @@ public class PatchEntry {
 
         List<LineSupplier> supps = new ArrayList<>();
         JsonArray lines = obj.getAsJsonArray("lines");
+        if(lines == null) {
+            throw new IllegalArgumentException("Missing required field 'lines'!");
+        }
         for(JsonElement ele : lines) {
             supps.add(LineSupplier.load(ele));
         }
@@ -130,4 +311,12 @@ public class PatchEntry {
         return new PatchEntry(t.actionSerializer.apply(obj), supps);
     }
 
+    private static String getString(JsonObject obj, String key) {
+        JsonElement ele = obj.get(key);
+        if(ele == null || ele.isJsonNull()) {
+            throw new IllegalArgumentException("Missing required field '" + key + "'!");
+        }
+        return ele.getAsString();
+    }
+
 }
@@ -3,29 +3,43 @@ package org.wallentines.gradle.patch;
 import org.gradle.api.Project;
 import org.gradle.api.file.*;
 import org.gradle.api.model.ObjectFactory;
-import org.gradle.api.plugins.ExtensionContainer;
-import org.gradle.api.plugins.JavaPluginExtension;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.*;
 import org.gradle.api.tasks.compile.JavaCompile;
-import org.gradle.jvm.toolchain.JavaToolchainService;
 import org.gradle.util.internal.GUtil;
 
 import javax.inject.Inject;
 import java.io.File;
+import java.util.*;
 
 public class PatchExtension {
 
     public final DirectoryProperty patchDirectory;
 
-    private final Project project;
+    /**
+     * Whether patch sets which patch the same sources should share a single patch task, which reads and indexes each
+     * source once for all of them. Only affects patch sets created after it is set
+     */
+    public final Property<Boolean> fanOut;
+
+    private final ObjectFactory objectFactory;
+    private final ProjectLayout layout;
+    private final TaskContainer tasks;
+    private final Map<SourceDirectorySet, TaskProvider<PatchTask>> fanOutTasks = new HashMap<>();
 
     @Inject
     public PatchExtension(Project project) {
 
-        this.project = project;
+        this.objectFactory = project.getObjects();
+        this.layout = project.getLayout();
+        this.tasks = project.getTasks();
+
+        this.patchDirectory = objectFactory.directoryProperty();
+        this.patchDirectory.convention(layout.getProjectDirectory().dir("patch"));
 
-        this.patchDirectory = project.getObjects().directoryProperty();
-        this.patchDirectory.convention(patchDirectory.dir("patch"));
+        this.fanOut = objectFactory.property(Boolean.class);
+        this.fanOut.convention(false);
 
     }
 
@@ -37,27 +51,105 @@ public class PatchExtension {
      * @param compileTask The compile task to modify to include patched sources
      */
     public void patchSet(String name, SourceSet sourceSet, SourceDirectorySet sources, JavaCompile compileTask) {
+        patchSet(name, sourceSet, sources, compileTask, List.of(sourceSet.getName() + "/" + name));
+    }
+
+    /**
+     * Creates a patch set which applies several directories of patches to each source, one after another, before the
+     * result is written
+     * @param name The name of the patch set
+     * @param sourceSet The source set which contains the sources to patch
+     * @param sources The sources to patch
+     * @param compileTask The compile task to modify to include patched sources
+     * @param layers The directories containing patches, relative to the patch directory, in the order they are applied
+     */
+    public void patchSet(String name, SourceSet sourceSet, SourceDirectorySet sources, JavaCompile compileTask, List<String> layers) {
+        SourceDirectorySet patches = createPatches(name, layers);
+        PatchOutput output = registerPatchTask(name, sourceSet, sources, patches);
+        configureCompileTask(compileTask, sources, patches, output);
+    }
+
+    /**
+     * Creates a patch set with the given parameters, without realizing the compile task
+     * @param name The name of the patch set. Will determine the name of the directory within the patch directory
+     * @param sourceSet The source set which contains the sources to patch
+     * @param sources The sources to patch
+     * @param compileTask The compile task to modify to include patched sources
+     */
+    public void patchSet(String name, SourceSet sourceSet, SourceDirectorySet sources, TaskProvider<JavaCompile> compileTask) {
+        patchSet(name, sourceSet, sources, compileTask, List.of(sourceSet.getName() + "/" + name));
+    }
+
+    /**
+     * Creates a patch set which applies several directories of patches to each source, one after another, before the
+     * result is written, without realizing the compile task
+     * @param name The name of the patch set
+     * @param sourceSet The source set which contains the sources to patch
+     * @param sources The sources to patch
+     * @param compileTask The compile task to modify to include patched sources
+     * @param layers The directories containing patches, relative to the patch directory, in the order they are applied
+     */
+    public void patchSet(String name, SourceSet sourceSet, SourceDirectorySet sources, TaskProvider<JavaCompile> compileTask, List<String> layers) {
+        SourceDirectorySet patches = createPatches(name, layers);
+        PatchOutput output = registerPatchTask(name, sourceSet, sources, patches);
+        compileTask.configure(task -> configureCompileTask(task, sources, patches, output));
+    }
+
+    private SourceDirectorySet createPatches(String name, List<String> layers) {
 
-        ObjectFactory objectFactory = project.getObjects();
-        TaskContainer tasks = project.getTasks();
+        if(layers.isEmpty()) {
+            throw new IllegalArgumentException("A patch set must have at least one patch directory!");
+        }
 
         String dirSetName = GUtil.toWords(name) + " patches";
         SourceDirectorySet javaPatches = objectFactory.sourceDirectorySet(name, dirSetName);
-        javaPatches.srcDir(project.file("patch/" + sourceSet.getName() + "/" + name));
-        javaPatches.getFilter().include("**/*.json");
+        for(String layer : layers) {
+            javaPatches.srcDir(patchDirectory.dir(layer));
+        }
+        javaPatches.getFilter().include("**/*.json", "**/*.patch");
+        return javaPatches;
+    }
 
-        File generatedSourceDir = project.file("build/generated/sources/patch/" + name + "/" + sourceSet.getName());
+    private PatchOutput registerPatchTask(String name, SourceSet sourceSet, SourceDirectorySet sources, SourceDirectorySet patches) {
+
+        String outputPath = "generated/sources/patch/" + name + "/" + sourceSet.getName();
+        TaskProvider<PatchTask> shared = fanOut.get() ? fanOutTasks.get(sources) : null;
+        if(shared != null) {
+            PatchTarget target = objectFactory.newInstance(PatchTarget.class, name);
+            target.getPatches().from(patches);
+            target.getGeneratedSourceDir().set(layout.getBuildDirectory().dir(outputPath));
+            target.getOutputManifest().set(layout.getBuildDirectory().file(outputPath + ".hashes"));
+            shared.configure(task -> task.getTargets().add(target));
+            return new PatchOutput(shared, target.getGeneratedSourceDir());
+        }
 
         TaskProvider<PatchTask> patchTask = tasks.register("patch" + capitalize(name), PatchTask.class, task -> {
-            task.patches = javaPatches;
-            task.sources = sources;
-            task.generatedSourceDir = generatedSourceDir;
+            task.getPatches().from(patches);
+            task.getSources().from(sources);
+            task.getGeneratedSourceDir().set(layout.getBuildDirectory().dir(outputPath));
+            task.getOutputManifest().set(layout.getBuildDirectory().file(outputPath + ".hashes"));
+            task.getCompiledPatchDir().set(layout.getBuildDirectory().dir("tmp/patch-cache"));
+            task.getReportFile().convention(layout.getBuildDirectory().file("reports/patch/" + task.getName() + ".json"));
         });
+        if(fanOut.get()) {
+            fanOutTasks.put(sources, patchTask);
+        }
+        return new PatchOutput(patchTask, patchTask.flatMap(PatchTask::getGeneratedSourceDir));
+    }
+
+    private void configureCompileTask(JavaCompile compileTask, SourceDirectorySet sources, SourceDirectorySet patches, PatchOutput output) {
+
+        ConfigurableFileTree generated = objectFactory.fileTree().from(output.generatedSourceDir());
+        generated.builtBy(output.task());
 
-        compileTask.setSource(filterSources(compileTask.getSource(), sources, javaPatches).plus(project.fileTree(generatedSourceDir)));
-        compileTask.dependsOn(patchTask);
+        compileTask.setSource(filterSources(compileTask.getSource(), sources, patches).plus(generated));
+        compileTask.dependsOn(output.task());
     }
 
+    /**
+     * The task which generates a patch set's sources, and the directory it generates them in
+     */
+    private record PatchOutput(TaskProvider<PatchTask> task, Provider<Directory> generatedSourceDir) { }
 
     private static String capitalize(String str) {
         if (str == null || str.isEmpty()) {
@@ -69,26 +161,60 @@ public class PatchExtension {
 
     private FileCollection filterSources(FileTree allSources, SourceDirectorySet sources, SourceDirectorySet patches) {
 
-        return allSources.filter(file -> {
-            for(File srcDir : sources.getSourceDirectories()) {
-                for (File dir : patches.getSourceDirectories()) {
+        PatchedPaths patched = new PatchedPaths(sources.getSourceDirectories(), objectFactory.fileCollection().from(patches));
+        return allSources.filter(file -> !patched.contains(file));
+    }
+
+    /**
+     * The absolute paths of all source files which have a patch, computed the first time they are needed and reused
+     * for the rest of the build, so filtering the compile task's sources is a single hash lookup per file.
+     */
+    private static class PatchedPaths {
 
-                    String patchPath = dir.getAbsolutePath();
-                    String sourcePath = srcDir.getAbsolutePath();
+        private final FileCollection sourceDirectories;
+        private final FileCollection patches;
+        private transient volatile Set<String> paths;
 
-                    if (!file.getAbsolutePath().startsWith(sourcePath)) continue;
+        PatchedPaths(FileCollection sourceDirectories, FileCollection patches) {
+            this.sourceDirectories = sourceDirectories;
+            this.patches = patches;
+        }
 
-                    String suffix = file.getAbsolutePath().substring(sourcePath.length());
-                    File existing = new File(patchPath + suffix.replace(".java", ".json"));
+        boolean contains(File file) {
+            return getPaths().contains(file.getAbsolutePath());
+        }
 
-                    if (patches.contains(existing)) {
-                        return false;
+        private Set<String> getPaths() {
+            Set<String> out = paths;
+            if(out == null) {
+                synchronized (this) {
+                    out = paths;
+                    if(out == null) {
+                        out = paths = computePaths();
                     }
                 }
             }
+            return out;
+        }
 
-            return true;
-        });
+        private Set<String> computePaths() {
+
+            List<String> names = new ArrayList<>();
+            patches.getAsFileTree().visit(details -> {
+                if(!details.isDirectory()) {
+                    names.add(PatchEngine.getSourceName(details.getRelativePath().getPathString()));
+                }
+            });
+
+            Set<File> srcDirs = sourceDirectories.getFiles();
+            Set<String> out = new HashSet<>(names.size() * srcDirs.size() * 2);
+            for(File srcDir : srcDirs) {
+                for(String name : names) {
+                    out.add(new File(srcDir, name).getAbsolutePath());
+                }
+            }
+            return out;
+        }
     }
 
 }
@@ -3,16 +3,20 @@ package org.wallentines.gradle.patch;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
 
-public class PatchFile {
+public class PatchFile implements Patch {
 
     private final List<PatchEntry> entries;
+    private final Set<String> literals = new LinkedHashSet<>();
 
     public PatchFile(Collection<PatchEntry> entries) {
         this.entries = List.copyOf(entries);
+        for(PatchEntry ent : this.entries) {
+            ent.collectLiterals(literals);
+        }
     }
 
     public List<PatchEntry> getEntries() {
@@ -20,9 +24,76 @@ public class PatchFile {
     }
 
     public void patch(LoadedFile file) {
-        for(PatchEntry ent : entries) {
-            ent.patch(file);
+        patch(file, null);
+    }
+
+    /**
+     * Patches the given file, applying each entry in order
+     * @param file The file to patch
+     * @param stats If not null, the time spent on and lines matched by each entry will be added to it
+     */
+    @Override
+    public void patch(LoadedFile file, PatchStats stats) {
+        file.indexLiterals(literals);
+        for(int i = 0 ; i < entries.size() ; i++) {
+            PatchEntry ent = entries.get(i);
+            if(stats == null) {
+                ent.patch(file);
+                continue;
+            }
+            long start = System.nanoTime();
+            RangeSet lines = ent.select(file);
+            long selected = System.nanoTime();
+            ent.apply(file, lines);
+            stats.addEntry(PatchStats.Entry.of(i + 1, ent, selected - start, System.nanoTime() - selected, lines));
+        }
+    }
+
+    /**
+     * Patches the given file by resolving every entry against the unmodified file, then applying all of their edits
+     * at once. Unlike {@link #patch(LoadedFile)}, entries do not see the changes made by earlier entries.
+     * @param file The file to patch
+     * @throws IllegalStateException If the edits of two entries overlap
+     */
+    public void patchBatched(LoadedFile file) {
+        patchBatched(file, null);
+    }
+
+    /**
+     * Patches the given file in a single pass, as in {@link #patchBatched(LoadedFile)}
+     * @param file The file to patch
+     * @param stats If not null, the time spent on and lines matched by each entry will be added to it
+     * @throws IllegalStateException If the edits of two entries overlap
+     */
+    @Override
+    public void patchBatched(LoadedFile file, PatchStats stats) {
+        file.indexLiterals(literals);
+        EditBatch batch = new EditBatch(file);
+        for(int i = 0 ; i < entries.size() ; i++) {
+            PatchEntry ent = entries.get(i);
+            batch.setEntry(i + 1);
+            if(stats == null) {
+                ent.collect(batch);
+                continue;
+            }
+            long start = System.nanoTime();
+            RangeSet lines = ent.select(file);
+            long selected = System.nanoTime();
+            ent.collect(batch, lines);
+            stats.addEntry(PatchStats.Entry.of(i + 1, ent, selected - start, System.nanoTime() - selected, lines));
         }
+        batch.apply();
+    }
+
+    /**
+     * Reads a patch file from a stream of JSON, without building a JSON tree first
+     * @param reader The reader to read JSON from
+     * @param source The name of the file being read, used in error messages
+     * @return A new patch file
+     * @throws IOException If the patch file could not be read, or is not a valid patch file
+     */
+    public static PatchFile read(Reader reader, String source) throws IOException {
+        return PatchReader.read(reader, source);
     }
 
     public static PatchFile load(JsonArray array) {
@@ -0,0 +1,406 @@
+package org.wallentines.gradle.patch;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Reads patch files directly from a stream of JSON tokens, without building a JSON tree first. Accepts the same
+ * documents as {@link PatchFile#load(com.google.gson.JsonArray)}, and reports errors as {@code file:line:column}.
+ */
+class PatchReader {
+
+    private final RecordingReader input;
+    private final JsonReader reader;
+    private final String source;
+
+    private PatchReader(Reader reader, String source) {
+        this.input = new RecordingReader(reader);
+        this.reader = new JsonReader(input);
+        this.reader.setLenient(true);
+        this.source = source;
+    }
+
+    /**
+     * Reads a patch file
+     * @param reader The reader to read JSON from
+     * @param source The name of the file being read, used in error messages
+     * @return A new patch file
+     * @throws IOException If the patch file could not be read, or is not a valid patch file
+     */
+    static PatchFile read(Reader reader, String source) throws IOException {
+        PatchReader pr = new PatchReader(reader, source);
+        try {
+            return pr.readFile();
+        } catch (IOException | IllegalStateException | NumberFormatException ex) {
+            if(ex instanceof PatchFormatException) throw (PatchFormatException) ex;
+            // Syntax errors are found by reading the text again until the same error is reached
+            String position = pr.position(ex instanceof IOException ? null : pr.location());
+            throw new PatchFormatException(position + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private PatchFile readFile() throws IOException {
+
+        List<PatchEntry> out = new ArrayList<>();
+        reader.beginArray();
+        while(reader.hasNext()) {
+            if(reader.peek() == JsonToken.BEGIN_OBJECT) {
+                out.add(readEntry());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        if(reader.peek() != JsonToken.END_DOCUMENT) {
+            throw error("Expected the end of the patch file");
+        }
+
+        return new PatchFile(out);
+    }
+
+    private PatchEntry readEntry() throws IOException {
+
+        String start = location();
+        JsonObject fields = new JsonObject();
+        List<LineSupplier> lines = null;
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String name = reader.nextName();
+            if(name.equals("lines")) {
+                lines = readLineRules();
+                continue;
+            }
+            switch (reader.peek()) {
+                case STRING, NUMBER -> fields.addProperty(name, reader.nextString());
+                case BOOLEAN -> fields.addProperty(name, reader.nextBoolean());
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if(!fields.has("type")) {
+            throw error(start, "Missing required field 'type'!");
+        }
+        String typeId = fields.get("type").getAsString();
+        PatchEntry.Type type = PatchEntry.Type.byId(typeId);
+        if(type == null) {
+            throw error(start, "Unknown entry type " + typeId + "!");
+        }
+        if(lines == null) {
+            throw error(start, "Missing required field 'lines'!");
+        }
+
+        try {
+            return new PatchEntry(type.actionSerializer.apply(fields), lines);
+        } catch (IllegalArgumentException | IllegalStateException | IndexOutOfBoundsException | UnsupportedOperationException ex) {
+            throw error(start, ex.getMessage());
+        }
+    }
+
+    private List<LineSupplier> readLineRules() throws IOException {
+        List<LineSupplier> out = new ArrayList<>();
+        reader.beginArray();
+        while(reader.hasNext()) {
+            out.add(readLineRule());
+        }
+        reader.endArray();
+        return out;
+    }
+
+    private LineSupplier readLineRule() throws IOException {
+
+        JsonToken token = reader.peek();
+        String start = location();
+        switch (token) {
+            case STRING -> {
+                String value = reader.nextString();
+                if(value.equalsIgnoreCase("all")) {
+                    return LineSupplier.all();
+                }
+                throw error(start, "Don't know how to read \"" + value + "\" as a line serializer!");
+            }
+            case NUMBER -> {
+                return LineSupplier.single(reader.nextInt());
+            }
+            case BEGIN_OBJECT -> {
+                return readLineRuleObject(start);
+            }
+            default -> throw error(start, "Don't know how to read " + token + " as a line serializer!");
+        }
+    }
+
+    private LineSupplier readLineRuleObject(String start) throws IOException {
+
+        LineSupplier value = null;
+        List<LineSupplier> values = null;
+        IntRange offset = new IntRange(0);
+        String find = null;
+        String findRegex = null;
+        String findRegexStart = null;
+        List<String> findBlock = null;
+        String findBlockStart = null;
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "value" -> value = readLineRule();
+                case "values" -> values = readLineRules();
+                case "offset" -> offset = readRange();
+                case "find" -> find = reader.nextString();
+                case "find_regex" -> {
+                    reader.peek();
+                    findRegexStart = location();
+                    findRegex = reader.nextString();
+                }
+                case "find_block" -> {
+                    reader.peek();
+                    findBlockStart = location();
+                    findBlock = readStrings();
+                }
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if(value != null) return value;
+        if(values != null) return LineSupplier.multi(values);
+        if(find != null) return LineSupplier.find(find, offset);
+        if(findRegex != null) {
+            try {
+                return LineSupplier.findRegex(Pattern.compile(findRegex, Pattern.MULTILINE), offset);
+            } catch (IllegalArgumentException ex) {
+                throw error(findRegexStart, ex.getMessage());
+            }
+        }
+        if(findBlock != null) {
+            try {
+                return LineSupplier.findBlock(findBlock, offset);
+            } catch (IllegalArgumentException ex) {
+                throw error(findBlockStart, ex.getMessage());
+            }
+        }
+
+        throw error(start, "Line rule objects must contain a value, values, find, find_regex, or find_block!");
+    }
+
+    private List<String> readStrings() throws IOException {
+        List<String> out = new ArrayList<>();
+        if(reader.peek() != JsonToken.BEGIN_ARRAY) {
+            out.add(reader.nextString());
+            return out;
+        }
+        reader.beginArray();
+        while(reader.hasNext()) {
+            out.add(reader.nextString());
+        }
+        reader.endArray();
+        return out;
+    }
+
+    private IntRange readRange() throws IOException {
+
+        JsonToken token = reader.peek();
+        String start = location();
+        switch (token) {
+            case NUMBER -> {
+                return new IntRange(reader.nextInt());
+            }
+            case BEGIN_ARRAY -> {
+                List<Integer> values = new ArrayList<>();
+                reader.beginArray();
+                while(reader.hasNext()) {
+                    values.add(reader.nextInt());
+                }
+                reader.endArray();
+                if(values.size() != 2) {
+                    throw error(start, "Int ranges must contain exactly two elements!");
+                }
+                if(values.get(1) <= values.get(0)) {
+                    throw error(start, "The second value in an int range must be greater than the first value!");
+                }
+                return new IntRange(values.get(0), values.get(1));
+            }
+            case BEGIN_OBJECT -> {
+                Integer min = null;
+                Integer max = null;
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "min" -> min = reader.nextInt();
+                        case "max" -> max = reader.nextInt();
+                        default -> reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if(min == null && max == null) {
+                    throw error(start, "Int range objects must contain a min or a max!");
+                }
+                int actualMin = min == null ? 0 : min;
+                int actualMax = max == null ? Integer.MAX_VALUE : max;
+                if(actualMax <= actualMin) {
+                    throw error(start, "The 'max' field in an int range must be greater than the 'min' field!");
+                }
+                return new IntRange(actualMin, actualMax);
+            }
+            default -> throw error(start, "Don't know how to turn " + token + " into an int range!");
+        }
+    }
+
+    /**
+     * Gets the JSON path of the current token. Only the path is tracked while reading, and it is turned into a line and
+     * column by {@link #position(String)} if there is an error
+     */
+    private String location() {
+        return reader.getPath();
+    }
+
+    private PatchFormatException error(String message) {
+        return error(location(), message);
+    }
+
+    private PatchFormatException error(String path, String message) {
+        return new PatchFormatException(position(path) + ": " + message + " (at " + path + ")", null);
+    }
+
+    /**
+     * Finds where the token at the given JSON path starts by reading the text again up to it. This is only done when
+     * reporting an error, so reading valid patch files never has to count lines. If the text cannot be read that far,
+     * the position of the problem which stopped it is returned instead
+     * @param path A path returned by {@link #location()}, or null to read until the text cannot be read
+     * @return The position, as {@code file:line:column}
+     */
+    private String position(String path) {
+
+        LineCountingReader counter = new LineCountingReader(new StringReader(input.text.toString()));
+        JsonReader scanner = new JsonReader(counter);
+        scanner.setLenient(true);
+
+        // The root path is also the path of everything after the root value, which is where errors about it are found
+        boolean root = "$".equals(path);
+        int depth = 0;
+        boolean readRoot = false;
+        try {
+            JsonToken token;
+            while((token = scanner.peek()) != JsonToken.END_DOCUMENT) {
+                if(path != null && scanner.getPath().equals(path) && (!root || readRoot)) {
+                    break;
+                }
+                switch (token) {
+                    case BEGIN_ARRAY -> {
+                        scanner.beginArray();
+                        depth++;
+                    }
+                    case BEGIN_OBJECT -> {
+                        scanner.beginObject();
+                        depth++;
+                    }
+                    case END_ARRAY -> {
+                        scanner.endArray();
+                        depth--;
+                    }
+                    case END_OBJECT -> {
+                        scanner.endObject();
+                        depth--;
+                    }
+                    case NAME -> scanner.nextName();
+                    default -> scanner.skipValue();
+                }
+                if(depth == 0) {
+                    readRoot = true;
+                }
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException ex) {
+            // Stopped at the problem
+        }
+        return source + ":" + counter.line + ":" + counter.column;
+    }
+
+    /**
+     * Passes text to the JSON reader unchanged, and keeps a copy of it so the position of an error can be found later
+     */
+    private static class RecordingReader extends Reader {
+
+        private final Reader in;
+        private final StringBuilder text = new StringBuilder();
+
+        RecordingReader(Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if(read > 0) {
+                text.append(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Passes characters to a JSON reader one at a time, and keeps track of the line and column of the last one.
+     * {@link JsonReader} only reads ahead as far as it needs to, so this stays at or just after the token it is
+     * reading, which it does not expose itself. Only used to find the position of an error
+     */
+    private static class LineCountingReader extends Reader {
+
+        private final Reader in;
+        private int line = 1;
+        private int column = 0;
+
+        LineCountingReader(Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            if(length == 0) {
+                return 0;
+            }
+            int c = in.read();
+            if(c == -1) {
+                return -1;
+            }
+            if(c == '\n') {
+                line++;
+                column = 0;
+            } else if(c != '\r') {
+                column++;
+            }
+            buffer[offset] = (char) c;
+            return 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Thrown when a patch file is not valid. The message starts with the location of the problem
+     */
+    static class PatchFormatException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        PatchFormatException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+}
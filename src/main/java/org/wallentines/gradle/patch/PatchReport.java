@@ -0,0 +1,118 @@
+package org.wallentines.gradle.patch;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.gradle.api.logging.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the statistics recorded by {@link PatchWorkAction}s. Each work item writes its own fragment, and the task
+ * merges them into a single report once all work items have finished.
+ */
+class PatchReport {
+
+    private static final int SLOWEST_ENTRIES = 10;
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
+
+    static void writeFragment(File file, List<PatchStats> stats) throws IOException {
+        JsonArray out = new JsonArray();
+        for(PatchStats ps : stats) {
+            out.add(ps.toJson());
+        }
+        Files.createDirectories(file.getParentFile().toPath());
+        try(Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(out, writer);
+        }
+    }
+
+    static List<PatchStats> readFragments(List<File> files) throws IOException {
+        List<PatchStats> out = new ArrayList<>();
+        for(File file : files) {
+            if(!file.isFile()) continue;
+            try(Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                for(JsonElement ele : GSON.fromJson(reader, JsonArray.class)) {
+                    out.add(PatchStats.load(ele.getAsJsonObject()));
+                }
+            }
+        }
+        out.sort(Comparator.comparing(PatchStats::getPatch));
+        return out;
+    }
+
+    static void write(File file, String task, boolean batchEdits, List<PatchStats> stats) throws IOException {
+
+        JsonObject out = new JsonObject();
+        out.addProperty("task", task);
+        out.addProperty("batch_edits", batchEdits);
+        JsonArray files = new JsonArray();
+        for(PatchStats ps : stats) {
+            files.add(ps.toJson());
+        }
+        out.add("files", files);
+
+        Files.createDirectories(file.getParentFile().toPath());
+        try(Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(out, writer);
+        }
+    }
+
+    /**
+     * Logs the total time spent in each phase, the slowest entries, and every entry which did not match any lines
+     */
+    static void log(Logger logger, List<PatchStats> stats) {
+
+        long parse = 0, read = 0, patch = 0, write = 0, bytes = 0;
+        List<String> names = new ArrayList<>();
+        List<PatchStats.Entry> entries = new ArrayList<>();
+        for(PatchStats ps : stats) {
+            parse += ps.getParseTime();
+            read += ps.getReadTime();
+            patch += ps.getPatchTime();
+            write += ps.getWriteTime();
+            bytes += ps.getBytesWritten();
+            for(PatchStats.Entry ent : ps.getEntries()) {
+                names.add(ps.getPatch());
+                entries.add(ent);
+                if(ent.ranges() == 0) {
+                    logger.warn("Entry {} ({}) in {} did not match any lines", ent.index(), ent.type(), ps.getPatch());
+                }
+            }
+        }
+
+        logger.lifecycle("Patched {} file(s), {} byte(s) written: parse {}, read {}, patch {}, write {}",
+                stats.size(), bytes, millis(parse), millis(read), millis(patch), millis(write));
+
+        List<Integer> order = new ArrayList<>();
+        for(int i = 0 ; i < entries.size() ; i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingLong((Integer i) -> entries.get(i).totalTime()).reversed());
+
+        int count = Math.min(SLOWEST_ENTRIES, order.size());
+        if(count > 0) {
+            logger.lifecycle("Slowest patch entries:");
+        }
+        for(int i = 0 ; i < count ; i++) {
+            PatchStats.Entry ent = entries.get(order.get(i));
+            logger.lifecycle(" - {} entry {} ({}): {} (select {}, apply {}), {} range(s)",
+                    names.get(order.get(i)), ent.index(), ent.type(), millis(ent.totalTime()),
+                    millis(ent.selectTime()), millis(ent.applyTime()), ent.ranges());
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f ms", nanos / 1_000_000.0);
+    }
+
+}
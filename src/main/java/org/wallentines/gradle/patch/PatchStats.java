@@ -0,0 +1,156 @@
+package org.wallentines.gradle.patch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timings and match counts recorded while patching a single file. All times are in nanoseconds.
+ */
+public class PatchStats {
+
+    private final String patch;
+    private long parseTime;
+    private long readTime;
+    private long patchTime;
+    private long writeTime;
+    private long bytesWritten;
+    private final List<Entry> entries = new ArrayList<>();
+
+    public PatchStats(String patch) {
+        this.patch = patch;
+    }
+
+    /**
+     * The name of the patch file, relative to its patch directory
+     */
+    public String getPatch() {
+        return patch;
+    }
+
+    public long getParseTime() {
+        return parseTime;
+    }
+
+    public void setParseTime(long parseTime) {
+        this.parseTime = parseTime;
+    }
+
+    public long getReadTime() {
+        return readTime;
+    }
+
+    public void setReadTime(long readTime) {
+        this.readTime = readTime;
+    }
+
+    /**
+     * The total time spent patching the file, including selecting lines, applying entries, and applying batched edits
+     */
+    public long getPatchTime() {
+        return patchTime;
+    }
+
+    public void setPatchTime(long patchTime) {
+        this.patchTime = patchTime;
+    }
+
+    public long getWriteTime() {
+        return writeTime;
+    }
+
+    public void setWriteTime(long writeTime) {
+        this.writeTime = writeTime;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void setBytesWritten(long bytesWritten) {
+        this.bytesWritten = bytesWritten;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public void addEntry(Entry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * Timings for a single patch entry
+     * @param index The 1-based index of the entry in its patch file
+     * @param type The type of the entry, e.g. {@code replace}
+     * @param selectTime The time spent evaluating the entry's line rules
+     * @param applyTime The time spent applying the entry's action to the selected lines. In batched mode, this is only
+     *                  the time spent collecting its edits
+     * @param ranges The number of disjoint line ranges the entry's line rules selected
+     */
+    public record Entry(int index, String type, long selectTime, long applyTime, int ranges) {
+
+        public static Entry of(int index, PatchEntry entry, long selectTime, long applyTime, RangeSet lines) {
+            PatchEntry.Type type = PatchEntry.Type.byAction(entry.getAction());
+            String typeId = type == null ? entry.getAction().getClass().getSimpleName() : type.getId();
+            return new Entry(index, typeId, selectTime, applyTime, lines.size());
+        }
+
+        public long totalTime() {
+            return selectTime + applyTime;
+        }
+
+        public JsonObject toJson() {
+            JsonObject out = new JsonObject();
+            out.addProperty("entry", index);
+            out.addProperty("type", type);
+            out.addProperty("select_ns", selectTime);
+            out.addProperty("apply_ns", applyTime);
+            out.addProperty("ranges", ranges);
+            return out;
+        }
+
+        public static Entry load(JsonObject obj) {
+            return new Entry(
+                    obj.get("entry").getAsInt(),
+                    obj.get("type").getAsString(),
+                    obj.get("select_ns").getAsLong(),
+                    obj.get("apply_ns").getAsLong(),
+                    obj.get("ranges").getAsInt());
+        }
+    }
+
+    public JsonObject toJson() {
+        JsonObject out = new JsonObject();
+        out.addProperty("patch", patch);
+        out.addProperty("parse_ns", parseTime);
+        out.addProperty("read_ns", readTime);
+        out.addProperty("patch_ns", patchTime);
+        out.addProperty("write_ns", writeTime);
+        out.addProperty("bytes_written", bytesWritten);
+        JsonArray arr = new JsonArray();
+        for(Entry ent : entries) {
+            arr.add(ent.toJson());
+        }
+        out.add("entries", arr);
+        return out;
+    }
+
+    public static PatchStats load(JsonObject obj) {
+        PatchStats out = new PatchStats(obj.get("patch").getAsString());
+        out.parseTime = obj.get("parse_ns").getAsLong();
+        out.readTime = obj.get("read_ns").getAsLong();
+        out.patchTime = obj.get("patch_ns").getAsLong();
+        out.writeTime = obj.get("write_ns").getAsLong();
+        out.bytesWritten = obj.get("bytes_written").getAsLong();
+        for(JsonElement ele : obj.getAsJsonArray("entries")) {
+            out.entries.add(Entry.load(ele.getAsJsonObject()));
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,57 @@
+package org.wallentines.gradle.patch;
+
+import org.gradle.api.Named;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.*;
+
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * A patch set which a {@link PatchTask} applies to its sources in addition to its own patches. See
+ * {@link PatchTask#getTargets()}
+ */
+public abstract class PatchTarget implements Named {
+
+    private final String name;
+
+    @Inject
+    public PatchTarget(String name) {
+        this.name = name;
+    }
+
+    @Input
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The patch files to apply. Matched to the task's sources in the same way as {@link PatchTask#getPatches()}
+     */
+    @InputFiles
+    @SkipWhenEmpty
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getPatches();
+
+    /**
+     * See {@link PatchTask#getPatchLayers()}
+     */
+    @Input
+    public List<String> getPatchLayers() {
+        return PatchTask.getLayers(getPatches());
+    }
+
+    @OutputDirectory
+    public abstract DirectoryProperty getGeneratedSourceDir();
+
+    /**
+     * A file recording the content hash of each generated source file, so unchanged outputs are not rewritten
+     */
+    @Internal
+    public abstract RegularFileProperty getOutputManifest();
+
+}
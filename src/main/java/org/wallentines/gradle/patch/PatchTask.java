@@ -1,87 +1,520 @@
 package org.wallentines.gradle.patch;
 
-import com.google.gson.*;
+import com.google.gson.Gson;
 import org.gradle.api.DefaultTask;
-import org.gradle.api.file.SourceDirectorySet;
-import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.FileType;
+import org.gradle.api.file.FileVisitDetails;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.work.ChangeType;
+import org.gradle.work.FileChange;
+import org.gradle.work.Incremental;
+import org.gradle.work.InputChanges;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutionException;
+import org.gradle.workers.WorkerExecutor;
 
+import javax.inject.Inject;
 import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
 
-public class PatchTask extends DefaultTask {
+@CacheableTask
+public abstract class PatchTask extends DefaultTask {
 
-    public SourceDirectorySet patches;
-    public SourceDirectorySet sources;
-    public File generatedSourceDir;
+    private final List<PatchTarget> targets = new ArrayList<>();
+
+    public PatchTask() {
+        getBatchEdits().convention(false);
+        getEncoding().convention("UTF-8");
+        getFuzz().convention(DiffPatch.DEFAULT_FUZZ);
+        getMaxOffset().convention(Integer.MAX_VALUE);
+        getClassLoaderIsolation().convention(false);
+        getReport().convention(false);
+    }
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+
+    /**
+     * The patch files to apply, either JSON patch files or unified diffs ending in {@code .patch}. Should be added as a
+     * file tree, as patch files are matched to sources by their path relative to the root of their tree. Each root
+     * directory is a layer: a source with patches in several layers has all of them applied, in the order the roots were
+     * added, before it is written
+     */
+    @InputFiles
+    @SkipWhenEmpty
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getPatches();
+
+    /**
+     * The root directories of {@link #getPatches()} in layer order, relative to their common parent. Only used so the
+     * task runs again when the layers are reordered
+     */
+    @Input
+    public List<String> getPatchLayers() {
+        return getLayers(getPatches());
+    }
+
+    /**
+     * The sources to patch. Should be added as a file tree, as sources are matched to patch files by their path
+     * relative to the root of their tree
+     */
+    @InputFiles
+    @Incremental
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getSources();
+
+    @OutputDirectory
+    public abstract DirectoryProperty getGeneratedSourceDir();
+
+    /**
+     * Other patch sets to apply to the same sources, each with its own generated source directory. Each source file is
+     * only read and indexed once per run, and then forked for every patch set which patches it
+     */
+    @Nested
+    public List<PatchTarget> getTargets() {
+        return targets;
+    }
+
+    @Internal
+    public abstract DirectoryProperty getCompiledPatchDir();
+
+    @Input
+    public abstract Property<Boolean> getBatchEdits();
+
+    /**
+     * The name of the charset used to read source files and write patched files
+     */
+    @Input
+    public abstract Property<String> getEncoding();
+
+    /**
+     * The number of context lines which may be ignored at each end of a unified diff hunk which does not match the
+     * source exactly
+     */
+    @Input
+    public abstract Property<Integer> getFuzz();
+
+    /**
+     * The maximum number of lines a unified diff hunk may be found away from the line in its header
+     */
+    @Input
+    public abstract Property<Integer> getMaxOffset();
+
+    /**
+     * The maximum number of source files to patch at once. Each source file is patched as its own work item, so by
+     * default this is only limited by Gradle's maximum number of workers ({@code --max-workers}). If set, work items
+     * are submitted in batches of this size, and each batch waits for the one before it to finish
+     */
+    @Internal
+    public abstract Property<Integer> getMaxParallelism();
+
+    /**
+     * Whether to patch files in an isolated class loader rather than directly in the daemon's plugin class loader
+     */
+    @Internal
+    public abstract Property<Boolean> getClassLoaderIsolation();
+
+    /**
+     * Whether to record how long each patch file and entry took, and how many ranges each entry matched. The report is
+     * written to {@link #getReportFile()}, and a summary is logged. Only files patched during that run are included
+     */
+    @Internal
+    public abstract Property<Boolean> getReport();
+
+    /**
+     * The file the report is written to. This is not an output of the task, as the timings in it differ on every run,
+     * so it is never restored from the build cache, and does not cause the task to run again when it is changed or
+     * deleted
+     */
+    @Internal
+    public abstract RegularFileProperty getReportFile();
+
+    /**
+     * A file recording the content hash of each generated source file, so unchanged outputs are not rewritten
+     */
+    @Internal
+    public abstract RegularFileProperty getOutputManifest();
 
 
     @TaskAction
-    public void patch() {
+    public void patch(InputChanges changes) {
 
-        if(!generatedSourceDir.exists() && !generatedSourceDir.mkdirs()) {
-            throw new IllegalStateException("Unable to create generated source directory at " + generatedSourceDir.getAbsolutePath());
+        List<Target> targets = new ArrayList<>();
+        targets.add(new Target("", getPatches(), getGeneratedSourceDir().get().getAsFile(), getOutputManifest().getAsFile().getOrNull()));
+        for(PatchTarget target : getTargets()) {
+            targets.add(new Target(target.getName(), target.getPatches(), target.getGeneratedSourceDir().get().getAsFile(), target.getOutputManifest().getAsFile().getOrNull()));
         }
 
-        for(File patch : patches) {
-            for(File dir : patches.getSourceDirectories()) {
+        Set<String> changedSources = new HashSet<>();
+        for(FileChange change : changes.getFileChanges(getSources())) {
+            if(change.getFileType() != FileType.DIRECTORY) {
+                changedSources.add(change.getNormalizedPath());
+            }
+        }
 
-                if(!patch.getAbsolutePath().startsWith(dir.getAbsolutePath())) continue;
+        List<Job> jobs = new ArrayList<>();
+        int total = 0;
+        for(int i = 0 ; i < targets.size() ; i++) {
+            Target target = targets.get(i);
+            jobs.addAll(target.plan(i, changes, changedSources));
+            total += target.patchFiles.size();
+        }
 
-                String fileName = patch.getAbsolutePath().substring(dir.getAbsolutePath().length());
-                fileName = fileName.replace(".json", ".java").replace("\\", "/");
+        if(!jobs.isEmpty()) {
+            getLogger().info("Patching {} of {} file(s)", jobs.size(), total);
 
-                File originalFile = findSourceFile(fileName);
-                if(originalFile == null) {
-                    throw new IllegalStateException("Unable to find file " + fileName + " for patching!");
+            // Jobs for the same source are kept together, so the source is only read once
+            jobs.sort(Comparator.comparing(Job::sourceName));
+            Map<String, File> sourceFiles = getRelativeFiles(getSources());
+            for(Job job : jobs) {
+                if(!sourceFiles.containsKey(job.sourceName())) {
+                    throw new IllegalStateException("Unable to find file " + job.sourceName() + " for patching!");
                 }
+            }
+            submitWork(targets, jobs, sourceFiles);
+        }
 
-                File outFile = new File(generatedSourceDir, fileName);
-                if(!outFile.getParentFile().exists() && !outFile.getParentFile().mkdirs()) {
-                    throw new IllegalStateException("Unable to create generated source directory " + outFile.getParentFile());
+        for(Target target : targets) {
+            if(target.manifestFile != null) {
+                try {
+                    target.manifest.write(target.manifestFile);
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Unable to write output manifest to " + target.manifestFile + "! " + ex.getMessage(), ex);
                 }
+            }
+        }
+    }
 
-                PatchFile pf;
-                try(FileInputStream fis = new FileInputStream(patch)) {
+    private void submitWork(List<Target> targets, List<Job> jobs, Map<String, File> sourceFiles) {
 
-                    Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+        File compiledPatchDir = getCompiledPatchDir().getAsFile().getOrNull();
+        boolean batchEdits = getBatchEdits().get();
+        String encoding = getEncoding().get();
+        int fuzz = getFuzz().get();
+        int maxOffset = getMaxOffset().get();
+        boolean report = getReport().get();
+        int maxParallelism = getMaxParallelism().getOrElse(0);
 
-                    JsonArray obj = gson.fromJson(new BufferedReader(new InputStreamReader(fis)), JsonArray.class);
-                    pf = PatchFile.load(obj);
+        File reportDir = new File(getTemporaryDir(), "report");
+        File manifestDir = new File(getTemporaryDir(), "manifest");
+        deleteContents(reportDir);
+        deleteContents(manifestDir);
+        List<File> fragments = new ArrayList<>();
+        Map<File, Target> manifestFragments = new LinkedHashMap<>();
 
-                } catch (IOException ex) {
-                    throw new IllegalStateException("Unable to read patch file " + patch + "! " + ex.getMessage());
-                }
+        List<String> targetNames = new ArrayList<>();
+        for(Target target : targets) {
+            targetNames.add(target.name);
+        }
 
-                LoadedFile loadedFile;
-                try(BufferedReader fis = new BufferedReader(new InputStreamReader(new FileInputStream(originalFile)))) {
+        WorkQueue queue = getClassLoaderIsolation().get()
+                ? getWorkerExecutor().classLoaderIsolation(spec -> spec.getClasspath().from(getCodeSource(PatchTask.class), getCodeSource(Gson.class)))
+                : getWorkerExecutor().noIsolation();
 
-                    loadedFile = LoadedFile.read(new BufferedReader(fis));
+        // Each work item is a source file and every patch set which patches it, so the source is only read once
+        List<WorkerExecutionException> failures = new ArrayList<>();
+        int item = 0;
+        for(int start = 0 ; start < jobs.size() ; item++) {
+            int end = start + 1;
+            while(end < jobs.size() && jobs.get(end).sourceName().equals(jobs.get(start).sourceName())) {
+                end++;
+            }
+            List<Job> group = jobs.subList(start, end);
+            start = end;
 
-                } catch (IOException ex) {
-                    throw new IllegalStateException("Unable to read source file " + originalFile + "! " + ex.getMessage());
+            File fragment = new File(reportDir, "work-" + item + ".json");
+            if(report) {
+                fragments.add(fragment);
+            }
+            Map<Integer, File> groupManifests = new HashMap<>();
+            for(Job job : group) {
+                File manifestFragment = new File(manifestDir, "work-" + item + "-" + job.target() + ".txt");
+                groupManifests.put(job.target(), manifestFragment);
+                manifestFragments.put(manifestFragment, targets.get(job.target()));
+            }
+
+            queue.submit(PatchWorkAction.class, params -> {
+                for(Job job : group) {
+                    Target target = targets.get(job.target());
+                    for(LayeredPatch patch : job.patches()) {
+                        params.getPatchNames().add(patch.name());
+                        params.getPatchFiles().add(patch.file());
+                    }
+                    OutputManifest.Entry previous = target.manifest.get(job.sourceName());
+                    params.getPatchCounts().add(job.patches().size());
+                    params.getSourceFiles().add(sourceFiles.get(job.sourceName()));
+                    params.getOutputFiles().add(new File(target.generatedSourceDir, job.sourceName()));
+                    params.getPreviousEntries().add(previous == null ? "" : previous.format());
+                    params.getTargets().add(job.target());
+                }
+                params.getTargetNames().set(targetNames);
+                params.getManifestFiles().set(groupManifests);
+                params.getCompiledPatchDir().set(compiledPatchDir);
+                params.getBatchEdits().set(batchEdits);
+                params.getEncoding().set(encoding);
+                params.getFuzz().set(fuzz);
+                params.getMaxOffset().set(maxOffset);
+                if(report) {
+                    params.getReportFile().set(fragment);
                 }
+            });
+            if(maxParallelism > 0 && (item + 1) % maxParallelism == 0) {
+                await(queue, failures);
+            }
+        }
+        await(queue, failures);
+        if(failures.size() == 1) {
+            throw failures.get(0);
+        }
+        if(!failures.isEmpty()) {
+            throw new WorkerExecutionException("There were failures while executing work items", failures);
+        }
 
-                pf.patch(loadedFile);
+        for(Map.Entry<File, Target> ent : manifestFragments.entrySet()) {
+            ent.getValue().manifest.putAll(OutputManifest.read(ent.getKey()));
+        }
+        if(report) {
+            writeReport(fragments, batchEdits);
+        }
+    }
 
-                try(FileOutputStream fos = new FileOutputStream(outFile)) {
+    /**
+     * Waits for every submitted work item to finish. Failures are collected rather than thrown, so later batches are
+     * still patched and every failure is reported together
+     */
+    private static void await(WorkQueue queue, List<WorkerExecutionException> failures) {
+        try {
+            queue.await();
+        } catch (WorkerExecutionException ex) {
+            failures.add(ex);
+        }
+    }
 
-                    loadedFile.write(fos);
+    private void writeReport(List<File> fragments, boolean batchEdits) {
 
-                } catch (IOException ex) {
-                    throw new IllegalStateException("Unable to generate source file for patch " + patch + "! " + ex.getMessage());
+        File reportFile = getReportFile().get().getAsFile();
+        try {
+            List<PatchStats> stats = PatchReport.readFragments(fragments);
+            PatchReport.write(reportFile, getPath(), batchEdits, stats);
+            PatchReport.log(getLogger(), stats);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to write patch report to " + reportFile + "! " + ex.getMessage(), ex);
+        }
+        getLogger().lifecycle("Patch report written to {}", reportFile.toURI());
+    }
+
+    private static Map<String, File> getRelativeFiles(FileCollection files) {
+        Map<String, File> out = new HashMap<>();
+        files.getAsFileTree().visit(details -> {
+            if(!details.isDirectory()) {
+                out.putIfAbsent(details.getRelativePath().getPathString(), details.getFile());
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Finds every patch file in the given collection, grouped by the name of the source file they patch
+     * @return The patches for each source, in layer order
+     */
+    private static Map<String, List<LayeredPatch>> getPatchFiles(FileCollection files) {
+        Map<File, Integer> layers = new HashMap<>();
+        Map<String, List<LayeredPatch>> out = new HashMap<>();
+        files.getAsFileTree().visit(details -> {
+            if(details.isDirectory()) return;
+
+            File root = getRoot(details);
+            int layer = layers.computeIfAbsent(root, k -> layers.size());
+
+            String name = details.getRelativePath().getPathString();
+            List<LayeredPatch> patches = out.computeIfAbsent(PatchEngine.getSourceName(name), k -> new ArrayList<>());
+            for(LayeredPatch other : patches) {
+                if(other.layer() == layer) {
+                    throw new IllegalStateException("Found multiple patches for " + PatchEngine.getSourceName(name) + " in " + root + ": " + other.name() + " and " + name + "!");
                 }
             }
+            patches.add(new LayeredPatch(layer, name, details.getFile()));
+        });
+        for(List<LayeredPatch> patches : out.values()) {
+            patches.sort(Comparator.comparingInt(LayeredPatch::layer));
         }
+        return out;
     }
 
-    private File findSourceFile(String fileName) {
+    static List<String> getLayers(FileCollection files) {
+
+        Set<File> roots = new LinkedHashSet<>();
+        files.getAsFileTree().visit(details -> {
+            if(!details.isDirectory()) {
+                roots.add(getRoot(details));
+            }
+        });
+        if(roots.isEmpty()) {
+            return List.of();
+        }
+
+        Path parent = roots.iterator().next().toPath();
+        for(File root : roots) {
+            while(!root.toPath().startsWith(parent)) {
+                parent = parent.getParent();
+            }
+        }
+        List<String> out = new ArrayList<>();
+        for(File root : roots) {
+            out.add(parent.relativize(root.toPath()).toString().replace(File.separatorChar, '/'));
+        }
+        return out;
+    }
+
+    private static File getRoot(FileVisitDetails details) {
+        File root = details.getFile();
+        for(int i = 0 ; i < details.getRelativePath().getSegments().length ; i++) {
+            root = root.getParentFile();
+        }
+        return root;
+    }
+
+    private static void deleteOutput(File generatedSourceDir, String fileName) {
+        File outFile = new File(generatedSourceDir, fileName);
+        try {
+            Files.deleteIfExists(outFile.toPath());
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to delete stale generated source file " + outFile + "! " + ex.getMessage(), ex);
+        }
+    }
+
+    private static void deleteStale(File dir, String prefix, Set<String> keep) {
+        File[] children = dir.listFiles();
+        if(children == null) return;
+        for(File child : children) {
+            String path = prefix + child.getName();
+            if(child.isDirectory()) {
+                deleteStale(child, path + "/", keep);
+                String[] remaining = child.list();
+                if(remaining != null && remaining.length == 0 && !child.delete()) {
+                    throw new IllegalStateException("Unable to delete stale generated source directory " + child + "!");
+                }
+            } else if(!keep.contains(path) && !child.delete()) {
+                throw new IllegalStateException("Unable to delete stale generated source file " + child + "!");
+            }
+        }
+    }
 
-        for(File dir : sources.getSourceDirectories()) {
-            File f = new File(dir, fileName);
-            if(sources.contains(f)) return f;
+    private static void deleteContents(File dir) {
+        File[] children = dir.listFiles();
+        if(children == null) return;
+        for(File child : children) {
+            if(child.isDirectory()) {
+                deleteContents(child);
+            }
+            if(!child.delete()) {
+                throw new IllegalStateException("Unable to delete " + child + "!");
+            }
         }
+    }
 
-        return null;
+    private static File getCodeSource(Class<?> clazz) {
+        try {
+            return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException ex) {
+            throw new IllegalStateException("Unable to locate the classpath entry for " + clazz.getName() + "!", ex);
+        }
     }
 
+    /**
+     * A source file to patch
+     * @param target The index of the patch set it belongs to
+     * @param sourceName The name of the source file, relative to its source directory
+     * @param patches The patch files to apply to it, in order
+     */
+    private record Job(int target, String sourceName, List<LayeredPatch> patches) { }
+
+    /**
+     * A patch file within one layer of a patch set
+     * @param layer The index of the layer
+     * @param name The name of the patch file, relative to its layer's directory
+     * @param file The patch file
+     */
+    private record LayeredPatch(int layer, String name, File file) { }
+
+    /**
+     * A patch set, along with the state of its outputs during a run
+     */
+    private static class Target {
+
+        private final String name;
+        private final FileCollection patches;
+        private final File generatedSourceDir;
+        private final File manifestFile;
+        private final OutputManifest manifest;
+        private Map<String, List<LayeredPatch>> patchFiles;
+
+        Target(String name, FileCollection patches, File generatedSourceDir, File manifestFile) {
+            this.name = name;
+            this.patches = patches;
+            this.generatedSourceDir = generatedSourceDir;
+            this.manifestFile = manifestFile;
+            this.manifest = OutputManifest.read(manifestFile);
+        }
+
+        /**
+         * Removes the outputs of patch files which no longer exist, and determines which patch files need to be applied
+         * @param index The index of this patch set
+         * @param changes The task's input changes
+         * @param changedSources The relative paths of every source which changed
+         * @return The patch files to apply
+         */
+        List<Job> plan(int index, InputChanges changes, Set<String> changedSources) {
+
+            if(!generatedSourceDir.exists() && !generatedSourceDir.mkdirs()) {
+                throw new IllegalStateException("Unable to create generated source directory at " + generatedSourceDir.getAbsolutePath());
+            }
+
+            patchFiles = getPatchFiles(patches);
+
+            if(!changes.isIncremental()) {
+                // Existing outputs are kept, as they are only replaced if their contents change
+                Set<String> expected = patchFiles.keySet();
+                deleteStale(generatedSourceDir, "", expected);
+                manifest.retainAll(expected);
+            }
+
+            Set<String> toPatch = new TreeSet<>();
+            for(FileChange change : changes.getFileChanges(patches)) {
+                if(change.getFileType() == FileType.DIRECTORY) continue;
+
+                // A change to any layer means the whole pipeline is applied again
+                String sourceName = PatchEngine.getSourceName(change.getNormalizedPath());
+                if(patchFiles.containsKey(sourceName)) {
+                    toPatch.add(sourceName);
+                } else if(change.getChangeType() == ChangeType.REMOVED) {
+                    deleteOutput(generatedSourceDir, sourceName);
+                    manifest.remove(sourceName);
+                }
+            }
+            for(String sourceName : changedSources) {
+                if(patchFiles.containsKey(sourceName)) {
+                    toPatch.add(sourceName);
+                }
+            }
+
+            List<Job> out = new ArrayList<>();
+            for(String sourceName : toPatch) {
+                out.add(new Job(index, sourceName, patchFiles.get(sourceName)));
+            }
+            return out;
+        }
+    }
 
 }
@@ -0,0 +1,191 @@
+package org.wallentines.gradle.patch;
+
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Patches a group of files on a Gradle worker. Each source file is read, has its patch files applied in order, and is
+ * written to the output file at the same index. {@link Parameters#getPatchCounts()} gives how many consecutive patch
+ * files apply to each source, and each patch file sees every edit made by the ones before it. Every file in the group
+ * is attempted, and all failures are reported together. Output files are only replaced if their contents changed, so
+ * unchanged files keep their modification time. When consecutive sources are the same file, it is only read and
+ * indexed once, and each patch set is applied to a fork of it.
+ */
+public abstract class PatchWorkAction implements WorkAction<PatchWorkAction.Parameters> {
+
+    public interface Parameters extends WorkParameters {
+
+        ListProperty<File> getPatchFiles();
+
+        /**
+         * How many consecutive patch files from {@link #getPatchFiles()} apply to each source file
+         */
+        ListProperty<Integer> getPatchCounts();
+
+        ListProperty<File> getSourceFiles();
+
+        ListProperty<File> getOutputFiles();
+
+        Property<File> getCompiledPatchDir();
+
+        Property<Boolean> getBatchEdits();
+
+        Property<String> getEncoding();
+
+        Property<Integer> getFuzz();
+
+        Property<Integer> getMaxOffset();
+
+        /**
+         * The names of the patch files, relative to their patch directory
+         */
+        ListProperty<String> getPatchNames();
+
+        /**
+         * The index of the patch set each source file is patched for
+         */
+        ListProperty<Integer> getTargets();
+
+        /**
+         * The name of each patch set, used to label its files in reports. Empty for the task's own patches
+         */
+        ListProperty<String> getTargetNames();
+
+        /**
+         * The manifest entry of each output file from the previous run, used to determine whether it has changed. See
+         * {@link OutputManifest.Entry#format()}. Empty if there is no entry
+         */
+        ListProperty<String> getPreviousEntries();
+
+        /**
+         * The file to write the manifest entries for each patch set's output files in this group to
+         */
+        MapProperty<Integer, File> getManifestFiles();
+
+        /**
+         * If set, per-file and per-entry statistics are recorded and written to this file
+         */
+        Property<File> getReportFile();
+
+    }
+
+    @Override
+    public void execute() {
+
+        Parameters params = getParameters();
+        List<File> patches = params.getPatchFiles().get();
+        List<File> sources = params.getSourceFiles().get();
+        List<File> outputs = params.getOutputFiles().get();
+        boolean batchEdits = params.getBatchEdits().getOrElse(false);
+        Charset charset = Charset.forName(params.getEncoding().getOrElse("UTF-8"));
+        int fuzz = params.getFuzz().getOrElse(DiffPatch.DEFAULT_FUZZ);
+        int maxOffset = params.getMaxOffset().getOrElse(Integer.MAX_VALUE);
+        List<Integer> counts = params.getPatchCounts().getOrElse(List.of());
+        List<String> names = params.getPatchNames().getOrElse(List.of());
+        List<Integer> targets = params.getTargets().getOrElse(List.of());
+        List<String> targetNames = params.getTargetNames().getOrElse(List.of());
+        File reportFile = params.getReportFile().getOrNull();
+
+        PatchCache cache = new PatchCache(params.getCompiledPatchDir().getOrNull());
+        Map<Integer, OutputManifest> manifests = new HashMap<>();
+        List<String> previous = params.getPreviousEntries().getOrElse(List.of());
+
+        List<Exception> failures = new ArrayList<>();
+        List<PatchStats> stats = new ArrayList<>();
+        LoadedFile base = null;
+        int patchIndex = 0;
+        for(int i = 0 ; i < sources.size() ; i++) {
+            int target = i < targets.size() ? targets.get(i) : 0;
+            String targetName = target < targetNames.size() ? targetNames.get(target) : "";
+            int count = i < counts.size() ? counts.get(i) : 1;
+            List<File> itemPatches = patches.subList(patchIndex, patchIndex + count);
+            List<PatchStats> itemStats = new ArrayList<>();
+            String outputName = null;
+            for(int j = 0 ; j < count ; j++) {
+                String name = patchIndex + j < names.size() ? names.get(patchIndex + j) : itemPatches.get(j).getName();
+                outputName = PatchEngine.getSourceName(name);
+                if(reportFile != null) {
+                    PatchStats fileStats = new PatchStats(targetName.isEmpty() ? name : targetName + "/" + name);
+                    itemStats.add(fileStats);
+                } else {
+                    itemStats.add(null);
+                }
+            }
+            patchIndex += count;
+
+            File sourceFile = sources.get(i);
+            boolean shared = i + 1 < sources.size() && sources.get(i + 1).equals(sourceFile);
+            try {
+                long start = System.nanoTime();
+                if(i == 0 || !sources.get(i - 1).equals(sourceFile)) {
+                    // Cleared first, so later items for a source which cannot be read fail instead of using the last one
+                    base = null;
+                    base = PatchEngine.readSource(sourceFile, charset);
+                    if(shared) {
+                        base.index();
+                    }
+                }
+                if(base == null) {
+                    throw new IllegalStateException("Unable to read source file " + sourceFile + "!");
+                }
+                // The last patch set for a source may edit the base itself, as nothing else will read it
+                LoadedFile source = shared ? base.fork() : base;
+                if(itemStats.get(0) != null) {
+                    itemStats.get(0).setReadTime(System.nanoTime() - start);
+                }
+
+                for(int j = 0 ; j < count ; j++) {
+                    if(j > 0) {
+                        source.applyPending();
+                    }
+                    PatchEngine.applyPatch(cache, itemPatches.get(j), source, batchEdits, fuzz, maxOffset, itemStats.get(j));
+                }
+
+                OutputManifest.Entry previousEntry = i < previous.size() ? OutputManifest.Entry.parse(previous.get(i)) : null;
+                OutputManifest.Entry entry = PatchEngine.writeOutput(source, outputs.get(i), charset, previousEntry, itemStats.get(count - 1));
+                manifests.computeIfAbsent(target, k -> new OutputManifest()).put(outputName, entry);
+                if(reportFile != null) {
+                    stats.addAll(itemStats);
+                }
+            } catch (RuntimeException ex) {
+                failures.add(ex);
+            }
+        }
+
+        for(Map.Entry<Integer, File> ent : params.getManifestFiles().get().entrySet()) {
+            try {
+                manifests.getOrDefault(ent.getKey(), new OutputManifest()).write(ent.getValue());
+            } catch (IOException ex) {
+                failures.add(new IOException("Unable to write output manifest fragment " + ent.getValue() + "! " + ex.getMessage(), ex));
+            }
+        }
+
+        if(reportFile != null) {
+            try {
+                PatchReport.writeFragment(reportFile, stats);
+            } catch (IOException ex) {
+                failures.add(new IOException("Unable to write patch report fragment " + reportFile + "! " + ex.getMessage(), ex));
+            }
+        }
+
+        if(!failures.isEmpty()) {
+            StringBuilder message = new StringBuilder("Unable to patch ").append(failures.size()).append(" file(s)!");
+            for(Exception ex : failures) {
+                message.append("\n - ").append(ex.getMessage());
+            }
+            IllegalStateException out = new IllegalStateException(message.toString(), failures.get(0));
+            for(Exception ex : failures.subList(1, failures.size())) {
+                out.addSuppressed(ex);
+            }
+            throw out;
+        }
+    }
+
+}
@@ -0,0 +1,385 @@
+package org.wallentines.gradle.patch;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A mutable character sequence stored as an ordered list of slices ("pieces") of immutable strings. Replacing a span
+ * only splits the pieces at its boundaries and inserts a reference to the new text, so the cost of an edit is
+ * proportional to the number of pieces rather than the length of the document.
+ */
+class PieceTable implements CharSequence {
+
+    private static final int COMPACT_THRESHOLD = 4096;
+
+    private String[] source;
+    private int[] offset;
+    private int[] start;
+    private int count;
+    private int length;
+
+    private int lastPiece;
+
+    PieceTable(String text) {
+        this(4);
+        if(!text.isEmpty()) {
+            source[0] = text;
+            offset[0] = 0;
+            start[0] = 0;
+            count = 1;
+            length = text.length();
+        }
+    }
+
+    private PieceTable(int capacity) {
+        this.source = new String[capacity];
+        this.offset = new int[capacity];
+        this.start = new int[capacity];
+    }
+
+    /**
+     * Creates a copy of this table which can be edited independently. The strings the pieces refer to are shared, as
+     * they are never modified
+     */
+    PieceTable copy() {
+        PieceTable out = new PieceTable(Math.max(4, count));
+        System.arraycopy(source, 0, out.source, 0, count);
+        System.arraycopy(offset, 0, out.offset, 0, count);
+        System.arraycopy(start, 0, out.start, 0, count);
+        out.count = count;
+        out.length = length;
+        return out;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+        }
+        int piece = lastPiece;
+        if(piece >= count || index < start[piece] || index >= pieceEnd(piece)) {
+            piece = lastPiece = findPiece(index);
+        }
+        return source[piece].charAt(offset[piece] + index - start[piece]);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        checkRange(from, to);
+        if(from == to) {
+            return "";
+        }
+
+        int first = findPiece(from);
+        int last = findPiece(to - 1);
+
+        if(first == last) {
+            int off = offset[first] + from - start[first];
+            return new Slice(source[first], off, off + to - from);
+        }
+
+        PieceTable out = new PieceTable(last - first + 1);
+        for(int i = first ; i <= last ; i++) {
+            int pieceStart = Math.max(from, start[i]);
+            out.source[out.count] = source[i];
+            out.offset[out.count] = offset[i] + pieceStart - start[i];
+            out.start[out.count] = pieceStart - from;
+            out.count++;
+        }
+        out.length = to - from;
+        return out;
+    }
+
+    /**
+     * Replaces the characters between {@code from} (inclusive) and {@code to} (exclusive) with the given text
+     * @param from The start of the span to replace
+     * @param to The end of the span to replace
+     * @param text The new text
+     */
+    public void replace(int from, int to, String text) {
+        checkRange(from, to);
+        if(from == to && text.isEmpty()) {
+            return;
+        }
+
+        int first = split(from);
+        int last = split(to);
+
+        int removed = last - first;
+        int added = text.isEmpty() ? 0 : 1;
+        int newCount = count - removed + added;
+
+        ensureCapacity(newCount);
+        if(removed != added) {
+            System.arraycopy(source, last, source, first + added, count - last);
+            System.arraycopy(offset, last, offset, first + added, count - last);
+            System.arraycopy(start, last, start, first + added, count - last);
+            Arrays.fill(source, newCount, Math.max(count, newCount), null);
+        }
+        if(added == 1) {
+            source[first] = text;
+            offset[first] = 0;
+            start[first] = from;
+        }
+        count = newCount;
+
+        int delta = text.length() - (to - from);
+        if(delta != 0) {
+            for(int i = first + added ; i < count ; i++) {
+                start[i] += delta;
+            }
+            length += delta;
+        }
+        lastPiece = 0;
+
+        if(count > COMPACT_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Applies a list of edits in a single pass over the piece list. The edits must be sorted by their start index and
+     * must not overlap. All indices refer to the text before any of the edits are applied.
+     * @param from The start of each replaced span
+     * @param to The end of each replaced span
+     * @param text The text which replaces each span
+     * @param edits The number of edits to apply
+     */
+    public void replaceAll(int[] from, int[] to, String[] text, int edits) {
+
+        PieceTable out = new PieceTable(count + edits * 2 + 1);
+        int position = 0;
+        for(int i = 0 ; i < edits ; i++) {
+            out.appendPieces(this, position, from[i]);
+            out.appendPiece(text[i], 0, text[i].length());
+            position = to[i];
+        }
+        out.appendPieces(this, position, length);
+
+        this.source = out.source;
+        this.offset = out.offset;
+        this.start = out.start;
+        this.count = out.count;
+        this.length = out.length;
+        this.lastPiece = 0;
+
+        if(count > COMPACT_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Finds the first occurrence of the given string at or after the given index
+     * @param str The string to look for
+     * @param from The index to start searching at
+     * @return The index of the first occurrence, or -1 if there is none
+     */
+    public int indexOf(String str, int from) {
+        return indexOf(str, from, length);
+    }
+
+    /**
+     * Finds the first occurrence of the given string which starts at or after {@code from} and ends at or before
+     * {@code to}
+     * @param str The string to look for
+     * @param from The index to start searching at
+     * @param to The index at which to stop searching
+     * @return The index of the first occurrence, or -1 if there is none
+     */
+    public int indexOf(String str, int from, int to) {
+
+        from = Math.max(0, from);
+        to = Math.min(to, length);
+        if(str.isEmpty()) {
+            return Math.min(from, to);
+        }
+        if(count == 1 && to == length) {
+            int index = source[0].indexOf(str, offset[0] + from);
+            return index == -1 || index + str.length() > offset[0] + length ? -1 : index - offset[0];
+        }
+
+        char first = str.charAt(0);
+        int max = to - str.length();
+        for(int piece = from < length ? findPiece(from) : count ; piece < count && start[piece] <= max ; piece++) {
+
+            // Only the part of the backing string which belongs to this piece is scanned
+            String src = source[piece];
+            int shift = offset[piece] - start[piece];
+            int end = Math.min(pieceEnd(piece), max + 1) + shift;
+            for(int index = Math.max(from, start[piece]) + shift ; index < end ; index++) {
+                if(src.charAt(index) == first && regionMatches(index - shift + 1, str, 1)) {
+                    return index - shift;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        if(count == 1 && offset[0] == 0 && source[0].length() == length) {
+            return source[0];
+        }
+        StringBuilder out = new StringBuilder(length);
+        appendTo(out, 0, length);
+        return out.toString();
+    }
+
+    /**
+     * Appends the characters between {@code from} (inclusive) and {@code to} (exclusive) to the given builder without
+     * creating an intermediate copy
+     * @param out The builder to append to
+     * @param from The start of the span to append
+     * @param to The end of the span to append
+     */
+    public void appendTo(StringBuilder out, int from, int to) {
+        checkRange(from, to);
+        if(from == to) {
+            return;
+        }
+        for(int i = findPiece(from) ; i < count && start[i] < to ; i++) {
+            int pieceStart = Math.max(from, start[i]);
+            int pieceEnd = Math.min(to, pieceEnd(i));
+            int off = offset[i] - start[i];
+            out.append(source[i], off + pieceStart, off + pieceEnd);
+        }
+    }
+
+    /**
+     * Writes the characters between {@code from} (inclusive) and {@code to} (exclusive) to the given writer without
+     * creating an intermediate copy
+     * @param out The writer to write to
+     * @param from The start of the span to write
+     * @param to The end of the span to write
+     * @throws IOException If writing fails
+     */
+    public void writeTo(Writer out, int from, int to) throws IOException {
+        checkRange(from, to);
+        if(from == to) {
+            return;
+        }
+        for(int i = findPiece(from) ; i < count && start[i] < to ; i++) {
+            int pieceStart = Math.max(from, start[i]);
+            int pieceEnd = Math.min(to, pieceEnd(i));
+            out.write(source[i], offset[i] + pieceStart - start[i], pieceEnd - pieceStart);
+        }
+    }
+
+    private void appendPieces(PieceTable other, int from, int to) {
+        if(from == to) {
+            return;
+        }
+        for(int i = other.findPiece(from) ; i < other.count && other.start[i] < to ; i++) {
+            int pieceStart = Math.max(from, other.start[i]);
+            int pieceEnd = Math.min(to, other.pieceEnd(i));
+            appendPiece(other.source[i], other.offset[i] + pieceStart - other.start[i], pieceEnd - pieceStart);
+        }
+    }
+
+    private void appendPiece(String text, int off, int len) {
+        if(len == 0) {
+            return;
+        }
+        ensureCapacity(count + 1);
+        source[count] = text;
+        offset[count] = off;
+        start[count] = length;
+        count++;
+        length += len;
+    }
+
+    private boolean regionMatches(int index, String str, int strOffset) {
+        for(int i = strOffset ; i < str.length() ; i++) {
+            if(charAt(index++) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int pieceEnd(int piece) {
+        return piece + 1 < count ? start[piece + 1] : length;
+    }
+
+    private int findPiece(int index) {
+        int found = Arrays.binarySearch(start, 0, count, index);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    private int split(int index) {
+        if(index == length) {
+            return count;
+        }
+        int piece = findPiece(index);
+        if(start[piece] == index) {
+            return piece;
+        }
+
+        ensureCapacity(count + 1);
+        System.arraycopy(source, piece + 1, source, piece + 2, count - piece - 1);
+        System.arraycopy(offset, piece + 1, offset, piece + 2, count - piece - 1);
+        System.arraycopy(start, piece + 1, start, piece + 2, count - piece - 1);
+
+        source[piece + 1] = source[piece];
+        offset[piece + 1] = offset[piece] + index - start[piece];
+        start[piece + 1] = index;
+        count++;
+
+        return piece + 1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > source.length) {
+            int newCapacity = Math.max(capacity, source.length * 2);
+            source = Arrays.copyOf(source, newCapacity);
+            offset = Arrays.copyOf(offset, newCapacity);
+            start = Arrays.copyOf(start, newCapacity);
+        }
+    }
+
+    private void compact() {
+        String flat = toString();
+        Arrays.fill(source, null);
+        source[0] = flat;
+        offset[0] = 0;
+        start[0] = 0;
+        count = 1;
+        lastPiece = 0;
+    }
+
+    private void checkRange(int from, int to) {
+        if(from < 0 || to > length || from > to) {
+            throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") out of bounds for length " + length);
+        }
+    }
+
+
+    private record Slice(String source, int from, int to) implements CharSequence {
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return source.charAt(from + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new Slice(source, from + start, from + end);
+        }
+
+        @Override
+        public String toString() {
+            return source.substring(from, to);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package org.wallentines.gradle.patch;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+/**
+ * A sorted set of inclusive int ranges, stored as two primitive arrays. Overlapping ranges are merged as they are
+ * added, but adjacent ranges (e.g. {@code [1,2]} and {@code [3,4]}) are kept apart, so that a selection of several
+ * consecutive single lines is still applied to each line individually.
+ */
+public final class RangeSet implements Iterable<IntRange> {
+
+    private int[] mins;
+    private int[] maxs;
+    private int size;
+
+    public RangeSet() {
+        this(4);
+    }
+
+    private RangeSet(int capacity) {
+        this.mins = new int[Math.max(1, capacity)];
+        this.maxs = new int[Math.max(1, capacity)];
+    }
+
+    public static RangeSet of(int min, int max) {
+        RangeSet out = new RangeSet(1);
+        out.add(min, max);
+        return out;
+    }
+
+    public static RangeSet of(IntRange range) {
+        return of(range.min(), range.max());
+    }
+
+    /**
+     * Adds a range to the set, merging it with any ranges it overlaps. Ranges where {@code max < min} are ignored
+     * @param min The first value in the range
+     * @param max The last value in the range
+     */
+    public void add(int min, int max) {
+
+        if(max < min) return;
+
+        // Common case: ranges arrive in ascending order
+        if(size == 0 || min > maxs[size - 1]) {
+            append(min, max);
+            return;
+        }
+
+        int first = firstEndingAtOrAfter(min);
+        int last = first;
+        while(last < size && mins[last] <= max) {
+            last++;
+        }
+
+        if(first == last) {
+            ensureCapacity(size + 1);
+            System.arraycopy(mins, first, mins, first + 1, size - first);
+            System.arraycopy(maxs, first, maxs, first + 1, size - first);
+            mins[first] = min;
+            maxs[first] = max;
+            size++;
+            return;
+        }
+
+        mins[first] = Math.min(min, mins[first]);
+        maxs[first] = Math.max(max, maxs[last - 1]);
+        int removed = last - first - 1;
+        if(removed > 0) {
+            System.arraycopy(mins, last, mins, first + 1, size - last);
+            System.arraycopy(maxs, last, maxs, first + 1, size - last);
+            size -= removed;
+        }
+    }
+
+    public void add(IntRange range) {
+        add(range.min(), range.max());
+    }
+
+    public void addAll(RangeSet other) {
+        for(int i = 0 ; i < other.size ; i++) {
+            add(other.mins[i], other.maxs[i]);
+        }
+    }
+
+    /**
+     * Gets the number of disjoint ranges in this set
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getMin(int index) {
+        if(index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        return mins[index];
+    }
+
+    public int getMax(int index) {
+        if(index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        return maxs[index];
+    }
+
+    public IntRange get(int index) {
+        return new IntRange(getMin(index), getMax(index));
+    }
+
+    public boolean contains(int value) {
+        int index = firstEndingAtOrAfter(value);
+        return index < size && mins[index] <= value;
+    }
+
+    /**
+     * Determines whether any value between {@code min} and {@code max} (inclusive) is in this set
+     */
+    public boolean intersects(int min, int max) {
+        int index = firstEndingAtOrAfter(min);
+        return index < size && mins[index] <= max;
+    }
+
+    /**
+     * Creates a copy of this set in which every range starting after {@code after} is moved by {@code delta}
+     */
+    public RangeSet shift(int after, int delta) {
+        RangeSet out = new RangeSet(size);
+        for(int i = 0 ; i < size ; i++) {
+            if(mins[i] > after) {
+                out.add(mins[i] + delta, maxs[i] + delta);
+            } else {
+                out.add(mins[i], maxs[i]);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Creates a set containing every value which is in this set or the other set
+     */
+    public RangeSet union(RangeSet other) {
+        RangeSet out = new RangeSet(size + other.size);
+        int i = 0;
+        int j = 0;
+        while(i < size || j < other.size) {
+            if(j == other.size || (i < size && mins[i] <= other.mins[j])) {
+                out.add(mins[i], maxs[i]);
+                i++;
+            } else {
+                out.add(other.mins[j], other.maxs[j]);
+                j++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Creates a set containing every value which is in both this set and the other set
+     */
+    public RangeSet intersect(RangeSet other) {
+        RangeSet out = new RangeSet(Math.max(size, other.size));
+        int i = 0;
+        int j = 0;
+        while(i < size && j < other.size) {
+            int min = Math.max(mins[i], other.mins[j]);
+            int max = Math.min(maxs[i], other.maxs[j]);
+            if(min <= max) {
+                out.append(min, max);
+            }
+            if(maxs[i] < other.maxs[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Creates a set containing every value which is in this set but not in the other set
+     */
+    public RangeSet subtract(RangeSet other) {
+        RangeSet out = new RangeSet(size);
+        int j = 0;
+        for(int i = 0 ; i < size ; i++) {
+            int min = mins[i];
+            int max = maxs[i];
+            while(j < other.size && other.maxs[j] < min) {
+                j++;
+            }
+            boolean covered = false;
+            for(int k = j ; k < other.size && other.mins[k] <= max ; k++) {
+                if(other.mins[k] > min) {
+                    out.append(min, other.mins[k] - 1);
+                }
+                if(other.maxs[k] >= max) {
+                    covered = true;
+                    break;
+                }
+                min = other.maxs[k] + 1;
+            }
+            if(!covered) {
+                out.append(min, max);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Calls the given consumer with the bounds of each range, from lowest to highest
+     */
+    public void forEach(RangeConsumer consumer) {
+        for(int i = 0 ; i < size ; i++) {
+            consumer.accept(mins[i], maxs[i]);
+        }
+    }
+
+    /**
+     * Calls the given consumer with the bounds of each range, from highest to lowest
+     */
+    public void forEachDescending(RangeConsumer consumer) {
+        for(int i = size - 1 ; i >= 0 ; i--) {
+            consumer.accept(mins[i], maxs[i]);
+        }
+    }
+
+    /**
+     * Calls the given consumer with every value in the set, in ascending order
+     */
+    public void forEachValue(IntConsumer consumer) {
+        for(int i = 0 ; i < size ; i++) {
+            for(int value = mins[i] ; value <= maxs[i] ; value++) {
+                consumer.accept(value);
+                if(value == Integer.MAX_VALUE) break;
+            }
+        }
+    }
+
+    @Override
+    public Iterator<IntRange> iterator() {
+        return new Iterator<>() {
+            int index = 0;
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public IntRange next() {
+                if(index >= size) throw new NoSuchElementException();
+                return get(index++);
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof RangeSet other) || other.size != size) return false;
+        return Arrays.equals(mins, 0, size, other.mins, 0, size) && Arrays.equals(maxs, 0, size, other.maxs, 0, size);
+    }
+
+    @Override
+    public int hashCode() {
+        int out = size;
+        for(int i = 0 ; i < size ; i++) {
+            out = 31 * (31 * out + mins[i]) + maxs[i];
+        }
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("[");
+        for(int i = 0 ; i < size ; i++) {
+            if(i > 0) out.append(", ");
+            out.append(mins[i]).append("..").append(maxs[i]);
+        }
+        return out.append("]").toString();
+    }
+
+    private void append(int min, int max) {
+        ensureCapacity(size + 1);
+        mins[size] = min;
+        maxs[size] = max;
+        size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > mins.length) {
+            int newLength = Math.max(capacity, mins.length * 2);
+            mins = Arrays.copyOf(mins, newLength);
+            maxs = Arrays.copyOf(maxs, newLength);
+        }
+    }
+
+    private int firstEndingAtOrAfter(int value) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(maxs[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public interface RangeConsumer {
+        void accept(int min, int max);
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.wallentines.gradle.patch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+
+/**
+ * A regex replacement string, parsed once into literal text and group references. Follows the same syntax as
+ * {@link Matcher#appendReplacement(StringBuilder, String)}, but only appends the replacement itself, so it can be used
+ * with matchers which only search a region of a document.
+ */
+class Replacement {
+
+    private final List<Object> parts;
+
+    private Replacement(List<Object> parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Parses a replacement string
+     * @param replacement The replacement string
+     * @param groupCount The number of capturing groups in the pattern the replacement will be used with
+     * @return A parsed replacement
+     */
+    public static Replacement parse(String replacement, int groupCount) {
+
+        List<Object> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+
+        int cursor = 0;
+        while(cursor < replacement.length()) {
+            char c = replacement.charAt(cursor);
+            if(c == '\\') {
+                cursor++;
+                if(cursor == replacement.length()) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                literal.append(replacement.charAt(cursor++));
+            } else if(c == '$') {
+                cursor++;
+                if(cursor == replacement.length()) {
+                    throw new IllegalArgumentException("Illegal group reference: group index is missing");
+                }
+                if(!literal.isEmpty()) {
+                    parts.add(literal.toString());
+                    literal.setLength(0);
+                }
+
+                char next = replacement.charAt(cursor);
+                if(next == '{') {
+                    int end = replacement.indexOf('}', ++cursor);
+                    if(end == -1) {
+                        throw new IllegalArgumentException("named capturing group is missing trailing '}'");
+                    }
+                    String name = replacement.substring(cursor, end);
+                    if(name.isEmpty()) {
+                        throw new IllegalArgumentException("named capturing group has 0 length name");
+                    }
+                    parts.add(new Named(name));
+                    cursor = end + 1;
+                } else {
+                    int group = next - '0';
+                    if(group < 0 || group > 9) {
+                        throw new IllegalArgumentException("Illegal group reference");
+                    }
+                    cursor++;
+                    while(cursor < replacement.length()) {
+                        int digit = replacement.charAt(cursor) - '0';
+                        if(digit < 0 || digit > 9) break;
+                        int newGroup = group * 10 + digit;
+                        if(newGroup > groupCount) break;
+                        group = newGroup;
+                        cursor++;
+                    }
+                    if(group > groupCount) {
+                        throw new IndexOutOfBoundsException("No group " + group);
+                    }
+                    parts.add(group);
+                }
+            } else {
+                literal.append(c);
+                cursor++;
+            }
+        }
+        if(!literal.isEmpty()) {
+            parts.add(literal.toString());
+        }
+
+        return new Replacement(List.copyOf(parts));
+    }
+
+    /**
+     * Appends the replacement for the current match to the given builder
+     * @param builder The builder to append to
+     * @param match The current match
+     */
+    public void appendTo(StringBuilder builder, MatchResult match) {
+        for(Object part : parts) {
+            String value;
+            if(part instanceof String str) {
+                value = str;
+            } else if(part instanceof Integer group) {
+                value = match.group(group);
+            } else {
+                value = ((Matcher) match).group(((Named) part).name);
+            }
+            if(value != null) {
+                builder.append(value);
+            }
+        }
+    }
+
+    private record Named(String name) { }
+
+}
@@ -0,0 +1,66 @@
+package org.wallentines.gradle.patch;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers the lines matched by each {@link LineSupplier.Search} in a file, so entries which share a line rule do not
+ * search the file again. After an edit, a result is only dropped if the edit touched one of its matches or may have
+ * created a new one. Otherwise, it is moved to account for the lines the edit added or removed.
+ */
+class SelectionCache {
+
+    private record Result(LineSupplier.Search search, RangeSet matches, int version) { }
+
+    private final Map<Object, Result> results = new HashMap<>();
+
+    RangeSet get(LineSupplier.Search search, LoadedFile file) {
+
+        Object key = search.key();
+        Result result = results.get(key);
+        if(result != null && result.version == file.getVersion()) {
+            return result.matches;
+        }
+
+        RangeSet matches = search.search(file);
+        results.put(key, new Result(search, matches, file.getVersion()));
+        return matches;
+    }
+
+    boolean isEmpty() {
+        return results.isEmpty();
+    }
+
+    void clear() {
+        results.clear();
+    }
+
+    /**
+     * Updates every result after an edit. Results from before the previous version are dropped
+     * @param file The file, after the edit
+     * @param start The start of the new text
+     * @param end The end of the new text
+     * @param firstLine The first line the edit touched
+     * @param lastLine The last line the edit touched, before the edit
+     * @param newLastLine The last line of the new text
+     */
+    void edited(LoadedFile file, int start, int end, int firstLine, int lastLine, int newLastLine) {
+
+        int version = file.getVersion();
+        Iterator<Map.Entry<Object, Result>> it = results.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Object, Result> ent = it.next();
+            Result result = ent.getValue();
+            if(result.version != version - 1
+                    || result.matches.intersects(firstLine, lastLine)
+                    || result.search.mayMatch(file, start, end, firstLine, newLastLine)) {
+                it.remove();
+                continue;
+            }
+            RangeSet matches = newLastLine == lastLine ? result.matches : result.matches.shift(lastLine, newLastLine - lastLine);
+            ent.setValue(new Result(result.search, matches, version));
+        }
+    }
+
+}
@@ -1,8 +1,16 @@
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.wallentines.gradle.patch.IntRange;
+import org.wallentines.gradle.patch.LineSupplier;
 import org.wallentines.gradle.patch.LoadedFile;
+import org.wallentines.gradle.patch.RangeSet;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -81,4 +89,234 @@ public class TestLoadedFile {
 
     }
 
+    @Test
+    public void testManyEdits() {
+
+        StringBuilder file = new StringBuilder();
+        for(int i = 1 ; i <= 200 ; i++) {
+            if(i > 1) file.append('\n');
+            file.append("line ").append(i);
+        }
+
+        LoadedFile lf = new LoadedFile(file.toString());
+        for(int i = 200 ; i >= 10 ; i -= 3) {
+            lf.setLine(i, "edited " + i + "\nextra " + i);
+        }
+        lf.setLines(new IntRange(2, 5), "joined");
+
+        Assertions.assertEquals("line 1", lf.getLine(1).toString());
+        Assertions.assertEquals("joined", lf.getLine(2).toString());
+        Assertions.assertEquals("line 6", lf.getLine(3).toString());
+        Assertions.assertEquals("edited 11", lf.getLine(8).toString());
+        Assertions.assertEquals("extra 11", lf.getLine(9).toString());
+        Assertions.assertEquals("extra 200", lf.getLine(lf.getLength()).toString());
+        Assertions.assertEquals(1, lf.find("extra 200").size());
+        Assertions.assertEquals(new IntRange(8, 9), lf.find(Pattern.compile("edited 11\\nextra 11")).iterator().next());
+    }
+
+    @Test
+    public void testIndexedFind() {
+
+        LoadedFile lf = new LoadedFile("public void a() {\n    a();\n}\npublic void b() {\n    b();\n}");
+        lf.indexLiterals(List.of("public void", "();", "void c"));
+
+        Assertions.assertEquals(Set.of(new IntRange(1), new IntRange(4)), lf.find("public void"));
+
+        lf.setLine(2, "    public void c();");
+        Assertions.assertEquals(Set.of(new IntRange(1), new IntRange(2), new IntRange(4)), lf.find("public void"));
+        Assertions.assertEquals(Set.of(new IntRange(2)), lf.find("void c"));
+
+        lf.setLines(new IntRange(1, 3), "");
+        Assertions.assertEquals(Set.of(new IntRange(2)), lf.find("public void"));
+        Assertions.assertEquals(Set.of(new IntRange(3)), lf.find("();"));
+    }
+
+    @Test
+    public void testFindBlock() {
+
+        LoadedFile lf = new LoadedFile("public void a() {\n    a();\n}\npublic void b() {\n    a();\n}");
+        LineSupplier block = LineSupplier.findBlock(List.of("    a();", "}"), new IntRange(0));
+        LineSupplier method = LineSupplier.findBlock(List.of("public void b() {\n    a();"), new IntRange(0, 1));
+
+        Assertions.assertEquals(RangeSet.of(2, 3).union(RangeSet.of(5, 6)), block.getLines(lf));
+        Assertions.assertEquals(RangeSet.of(4, 6), method.getLines(lf));
+
+        lf.setLines(new IntRange(1, 3), "}\n");
+        Assertions.assertEquals(RangeSet.of(4, 5), block.getLines(lf));
+        Assertions.assertEquals(RangeSet.of(3, 5), method.getLines(lf));
+    }
+
+    @Test
+    public void testCachedSearch() {
+
+        LoadedFile lf = new LoadedFile("a();\nb();\na();");
+        LineSupplier find = LineSupplier.find("a()", new IntRange(0));
+        LineSupplier after = LineSupplier.find("a()", new IntRange(1));
+
+        Assertions.assertEquals(RangeSet.of(1, 1).union(RangeSet.of(3, 3)), find.getLines(lf));
+        Assertions.assertEquals(RangeSet.of(2, 2).union(RangeSet.of(4, 4)), after.getLines(lf));
+
+        int version = lf.getVersion();
+        lf.insertAt(1, "a();");
+        Assertions.assertEquals(version, lf.getVersion());
+
+        lf.setLine(2, "c();\nd();");
+        Assertions.assertNotEquals(version, lf.getVersion());
+        Assertions.assertEquals(RangeSet.of(1, 1).union(RangeSet.of(4, 4)), find.getLines(lf));
+
+        lf.setLine(3, "a();");
+        RangeSet expected = RangeSet.of(1, 1);
+        expected.add(3, 3);
+        expected.add(4, 4);
+        Assertions.assertEquals(expected, find.getLines(lf));
+    }
+
+    @Test
+    public void testFork() {
+
+        LoadedFile base = new LoadedFile("a();\nb();\na();");
+        base.insertAt(1, "c();");
+        base.index();
+        LineSupplier find = LineSupplier.findBlock(List.of("a();"), new IntRange(0));
+
+        LoadedFile first = base.fork();
+        LoadedFile second = base.fork();
+        first.setLine(1, "b();\nb();");
+        second.setLine(3, "d();");
+
+        Assertions.assertEquals("a();\nb();\na();", base.getAllLines().toString());
+        Assertions.assertEquals("b();\nb();\nb();\na();", first.getAllLines().toString());
+        Assertions.assertEquals("a();\nb();\nd();", second.getAllLines().toString());
+
+        Assertions.assertEquals(RangeSet.of(1, 1).union(RangeSet.of(3, 3)), find.getLines(base));
+        Assertions.assertEquals(RangeSet.of(4, 4), find.getLines(first));
+        Assertions.assertEquals(RangeSet.of(1, 1), find.getLines(second));
+
+        StringWriter out = new StringWriter();
+        try {
+            second.write(out);
+        } catch (IOException ex) {
+            Assertions.fail("An exception occurred writing a file!", ex);
+        }
+        Assertions.assertEquals("a();\nc();\nb();\nd();", out.toString());
+    }
+
+    @Test
+    public void testRoundTrip() {
+
+        String[] files = { "\n\nfirst\nsecond\n", "first\r\nsecond\r\n", "no newline", "" };
+        for(String file : files) {
+
+            LoadedFile lf;
+            try {
+                lf = LoadedFile.read(new BufferedReader(new StringReader(file)));
+            } catch (IOException ex) {
+                Assertions.fail("An exception occurred while reading a file!", ex);
+                return;
+            }
+
+            StringWriter out = new StringWriter();
+            try {
+                lf.write(out);
+            } catch (IOException ex) {
+                Assertions.fail("An exception occurred writing a file!", ex);
+                return;
+            }
+            Assertions.assertEquals(file, out.toString());
+        }
+
+        LoadedFile lf;
+        try {
+            lf = LoadedFile.read(new BufferedReader(new StringReader("first\r\nsecond\r\n")));
+        } catch (IOException ex) {
+            Assertions.fail("An exception occurred while reading a file!", ex);
+            return;
+        }
+        lf.setLine(1, "one\ntwo");
+        lf.insertAt(3, "three\nfour");
+
+        StringWriter out = new StringWriter();
+        try {
+            lf.write(out);
+        } catch (IOException ex) {
+            Assertions.fail("An exception occurred writing a file!", ex);
+            return;
+        }
+        Assertions.assertEquals("one\r\ntwo\r\nsecond\r\nthree\r\nfour\r\n", out.toString());
+    }
+
+    @Test
+    public void testApplyPending() throws IOException {
+
+        String[] files = { "one\ntwo\nthree\n", "one\r\ntwo\r\nthree", "one\n", "" };
+        for(String file : files) {
+            for(int variant = 0 ; variant < 4 ; variant++) {
+
+                LoadedFile lf = LoadedFile.read(new BufferedReader(new StringReader(file)));
+                switch (variant) {
+                    case 0 -> {
+                        lf.insertAt(0, "first");
+                        lf.insertAt(1, "after one\nand more");
+                        lf.deleteLine(2);
+                    }
+                    case 1 -> {
+                        lf.deleteLine(lf.getLength());
+                        lf.insertAt(lf.getLength(), "last");
+                    }
+                    case 2 -> {
+                        for(int i = 1 ; i <= lf.getLength() ; i++) {
+                            lf.deleteLine(i);
+                        }
+                    }
+                    case 3 -> {
+                        lf.deleteLine(1);
+                        lf.insertAt(1, "");
+                    }
+                }
+
+                // Applying pending edits must leave the file as if it was written and read again
+                StringWriter written = new StringWriter();
+                lf.write(written);
+                LoadedFile reread = LoadedFile.read(new BufferedReader(new StringReader(written.toString())));
+
+                int version = lf.getVersion();
+                lf.applyPending();
+                Assertions.assertTrue(lf.getVersion() != version);
+                Assertions.assertEquals(reread.getAllLines().toString(), lf.getAllLines().toString(), file + " " + variant);
+                Assertions.assertEquals(reread.getLength(), lf.getLength());
+
+                StringWriter out = new StringWriter();
+                lf.write(out);
+                Assertions.assertEquals(written.toString(), out.toString(), file + " " + variant);
+            }
+        }
+
+        LoadedFile lf = new LoadedFile("one\ntwo");
+        lf.insertAt(1, "inserted");
+        lf.applyPending();
+        Assertions.assertEquals(Set.of(new IntRange(2)), lf.find("inserted"));
+        Assertions.assertEquals("two", lf.getLine(3).toString());
+    }
+
+    @Test
+    public void testReadFile() {
+
+        byte[] bytes = "package a;\r\n\r\n// Última Línea\r\nclass A { }\r\n".getBytes(StandardCharsets.UTF_8);
+        try {
+            Path file = Files.createTempFile("loaded", ".java");
+            Files.write(file, bytes);
+
+            LoadedFile lf = LoadedFile.read(file, StandardCharsets.UTF_8);
+            Assertions.assertEquals(4, lf.getLength());
+            Assertions.assertEquals("// Última Línea", lf.getLine(3).toString());
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            lf.write(os, StandardCharsets.UTF_8);
+            Assertions.assertArrayEquals(bytes, os.toByteArray());
+
+        } catch (IOException ex) {
+            Assertions.fail("An exception occurred while reading a file!", ex);
+        }
+    }
+
 }
@@ -0,0 +1,155 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.wallentines.gradle.patch.PatchEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+public class TestPatchEngine {
+
+    @Test
+    public void testPatchTree() throws IOException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Path dir = Files.createTempDirectory("patch-engine");
+        try {
+            Path sources = dir.resolve("src");
+            Path common = dir.resolve("common");
+            Path specific = dir.resolve("specific");
+            Path output = dir.resolve("out");
+
+            Files.createDirectories(sources.resolve("a"));
+            Files.createDirectories(common.resolve("a"));
+            Files.createDirectories(specific.resolve("a"));
+            Files.writeString(sources.resolve("a/A.java"), "class A {\n    String s = \"base\";\n}\n");
+            Files.writeString(sources.resolve("a/B.java"), "class B {\n}\n");
+            Files.writeString(sources.resolve("a/C.java"), "class C {\n}\n");
+            Files.writeString(sources.resolve("a/D.java"), "class D {\n    int d;\n}\n");
+            Files.writeString(sources.resolve("a/E.java"), "class E {\n    int old;\n}\n");
+            Files.writeString(common.resolve("a/A.json"), "[ { \"type\": \"replace\", \"lines\": [\"all\"], \"find\": \"base\", \"replace\": \"common\" } ]");
+            Files.writeString(specific.resolve("a/A.json"), "[ { \"type\": \"replace\", \"lines\": [\"all\"], \"find\": \"common\", \"replace\": \"specific\" } ]");
+            Files.writeString(specific.resolve("a/B.patch"), "--- a/B.java\n+++ b/B.java\n@@ -1,2 +1,3 @@\n class B {\n+    int b;\n }\n");
+
+            // The specific layer selects lines which were inserted or removed by the common layer
+            Files.writeString(common.resolve("a/D.json"), "[ { \"type\": \"insert_before\", \"lines\": [ { \"find\": \"int d\" } ], \"value\": \"    int inserted = 1;\" } ]");
+            Files.writeString(specific.resolve("a/D.json"), "[ { \"type\": \"set\", \"lines\": [ { \"find\": \"int inserted\" } ], \"value\": \"    int inserted = 2;\" } ]");
+            Files.writeString(common.resolve("a/E.patch"), "--- a/E.java\n+++ b/E.java\n@@ -1,3 +1,2 @@\n class E {\n-    int old;\n }\n");
+            Files.writeString(specific.resolve("a/E.json"), "[ { \"type\": \"set\", \"lines\": [ { \"find_block\": [ \"class E {\", \"}\" ] } ], \"value\": \"class E { }\" } ]");
+
+            PatchEngine.Result result = new PatchEngine(executor, null).patchTree(sources, List.of(common, specific), output);
+
+            Assertions.assertTrue(result.isSuccessful(), String.valueOf(result.failures()));
+            Assertions.assertEquals(4, result.files());
+            Assertions.assertEquals("class A {\n    String s = \"specific\";\n}\n", Files.readString(output.resolve("a/A.java")));
+            Assertions.assertEquals("class B {\n    int b;\n}\n", Files.readString(output.resolve("a/B.java")));
+            Assertions.assertFalse(Files.exists(output.resolve("a/C.java")));
+            Assertions.assertEquals("class D {\n    int d;\n    int inserted = 2;\n}\n", Files.readString(output.resolve("a/D.java")));
+            Assertions.assertEquals("class E { }\n", Files.readString(output.resolve("a/E.java")));
+
+            Files.writeString(specific.resolve("a/A.json"), "[ { \"type\": \"unknown\" } ]");
+            result = new PatchEngine(executor, null).patchTree(sources, List.of(common, specific), output);
+            Assertions.assertEquals(1, result.failures().size());
+
+        } finally {
+            executor.shutdown();
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testLayers() throws IOException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Path dir = Files.createTempDirectory("patch-engine");
+        try {
+            Path sources = dir.resolve("src");
+            Path first = dir.resolve("first");
+            Path second = dir.resolve("second");
+            Files.createDirectories(sources);
+            Files.createDirectories(first);
+            Files.createDirectories(second);
+            Files.writeString(sources.resolve("A.java"), "class A {\n    String s = \"base\";\n}\n");
+            Files.writeString(sources.resolve("B.java"), "class B {\n    int b;\n}\n");
+
+            // The second layer finds lines which were only inserted by the first
+            Files.writeString(first.resolve("A.json"), "[ { \"type\": \"insert_before\", \"lines\": [ { \"find\": \"String s\" } ], \"value\": \"    int added = 1;\" } ]");
+            Files.writeString(second.resolve("A.json"), "[ { \"type\": \"replace\", \"lines\": [ { \"find\": \"int added\" } ], \"find\": \"1\", \"replace\": \"2\" } ]");
+            Files.writeString(first.resolve("B.json"), "[ { \"type\": \"insert_before\", \"lines\": [ { \"find\": \"int b\" } ], \"value\": \"    int c;\" } ]");
+            Files.writeString(second.resolve("B.patch"), "--- a/B.java\n+++ b/B.java\n@@ -2,3 +2,4 @@\n     int b;\n     int c;\n+    int d;\n }\n");
+
+            PatchEngine engine = new PatchEngine(executor, null);
+            PatchEngine.Result result = engine.patchTree(sources, List.of(first, second), dir.resolve("layered"));
+            Assertions.assertTrue(result.isSuccessful(), String.valueOf(result.failures()));
+
+            Assertions.assertTrue(engine.patchTree(sources, List.of(first), dir.resolve("first-out")).isSuccessful());
+            result = engine.patchTree(dir.resolve("first-out"), List.of(second), dir.resolve("chained"));
+            Assertions.assertTrue(result.isSuccessful(), String.valueOf(result.failures()));
+
+            for(String name : List.of("A.java", "B.java")) {
+                Assertions.assertEquals(Files.readString(dir.resolve("chained").resolve(name)), Files.readString(dir.resolve("layered").resolve(name)));
+            }
+            Assertions.assertEquals("class A {\n    String s = \"base\";\n    int added = 2;\n}\n", Files.readString(dir.resolve("layered/A.java")));
+            Assertions.assertEquals("class B {\n    int b;\n    int c;\n    int d;\n}\n", Files.readString(dir.resolve("layered/B.java")));
+
+        } finally {
+            executor.shutdown();
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testUnchangedOutput() throws IOException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Path dir = Files.createTempDirectory("patch-engine");
+        try {
+            Path sources = dir.resolve("src");
+            Path patches = dir.resolve("patch");
+            Path output = dir.resolve("out");
+            Files.createDirectories(sources);
+            Files.createDirectories(patches);
+            Files.writeString(sources.resolve("A.java"), "class A {\n    String s = \"base\";\n}\n");
+            Files.writeString(patches.resolve("A.json"), "[ { \"type\": \"replace\", \"lines\": [\"all\"], \"find\": \"base\", \"replace\": \"first\" } ]");
+
+            PatchEngine engine = new PatchEngine(executor, null);
+            Assertions.assertTrue(engine.patchTree(sources, List.of(patches), output).isSuccessful());
+            File out = output.resolve("A.java").toFile();
+            Assertions.assertTrue(out.setLastModified(1000));
+
+            // The same output is not written again, so it keeps its modification time
+            Assertions.assertTrue(engine.patchTree(sources, List.of(patches), output).isSuccessful());
+            Assertions.assertEquals(1000, out.lastModified());
+            Assertions.assertEquals("class A {\n    String s = \"first\";\n}\n", Files.readString(out.toPath()));
+
+            // Output of the same length but different content is replaced
+            Files.writeString(patches.resolve("A.json"), "[ { \"type\": \"replace\", \"lines\": [\"all\"], \"find\": \"base\", \"replace\": \"other\" } ]");
+            Assertions.assertTrue(engine.patchTree(sources, List.of(patches), output).isSuccessful());
+            Assertions.assertNotEquals(1000, out.lastModified());
+            Assertions.assertEquals("class A {\n    String s = \"other\";\n}\n", Files.readString(out.toPath()));
+
+            try(Stream<Path> files = Files.list(output)) {
+                Assertions.assertEquals(List.of(output.resolve("A.java")), files.toList());
+            }
+
+        } finally {
+            executor.shutdown();
+            delete(dir);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try(Stream<Path> files = Files.walk(dir)) {
+            for(Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+}
@@ -3,13 +3,20 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.wallentines.gradle.patch.DiffPatch;
+import org.wallentines.gradle.patch.IntRange;
 import org.wallentines.gradle.patch.LineSupplier;
 import org.wallentines.gradle.patch.LoadedFile;
+import org.wallentines.gradle.patch.PatchCache;
 import org.wallentines.gradle.patch.PatchEntry;
 import org.wallentines.gradle.patch.PatchFile;
+import org.wallentines.gradle.patch.PatchStats;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
+import java.util.regex.Pattern;
 
 public class TestPatchFile {
 
@@ -82,4 +89,239 @@ public class TestPatchFile {
         Assertions.assertFalse(out.contains("->"));
     }
 
+    @Test
+    public void testBatched() {
+
+        PatchFile pf;
+        LoadedFile sequential;
+        LoadedFile batched;
+        try {
+            pf = PatchFile.load(new Gson().fromJson(new BufferedReader(new FileReader("ContextSerializer.json")), JsonArray.class));
+            sequential = LoadedFile.read(new BufferedReader(new FileReader("ContextSerializer.java")));
+            batched = LoadedFile.read(new BufferedReader(new FileReader("ContextSerializer.java")));
+        } catch (Exception ex) {
+            Assertions.fail("An exception occurred while reading a file!", ex);
+            return;
+        }
+
+        pf.patch(sequential);
+        pf.patchBatched(batched);
+
+        Assertions.assertEquals(sequential.getAllLines().toString(), batched.getAllLines().toString());
+        Assertions.assertFalse(batched.getAllLines().toString().contains("new Serializer<>()"));
+    }
+
+    @Test
+    public void testBatchedConflict() {
+
+        LoadedFile lf = new LoadedFile("first\nsecond\nthird");
+        PatchFile pf = new PatchFile(List.of(
+                new PatchEntry(new PatchEntry.Set("2"), List.of(LineSupplier.single(2))),
+                new PatchEntry(new PatchEntry.Insert("inserted"), List.of(LineSupplier.single(1))),
+                new PatchEntry(new PatchEntry.Replace("cond", "COND"), List.of(LineSupplier.all()))
+        ));
+
+        Assertions.assertThrows(IllegalStateException.class, () -> pf.patchBatched(lf));
+        Assertions.assertEquals("first\nsecond\nthird", lf.getAllLines().toString());
+
+        PatchFile valid = new PatchFile(List.of(
+                new PatchEntry(new PatchEntry.Set("2"), List.of(LineSupplier.single(2))),
+                new PatchEntry(new PatchEntry.Insert("inserted"), List.of(LineSupplier.single(1))),
+                new PatchEntry(new PatchEntry.InsertBefore("before"), List.of(LineSupplier.single(1)))
+        ));
+        valid.patchBatched(lf);
+        Assertions.assertEquals("first\nbefore\n2\ninserted\nthird", lf.getAllLines().toString());
+    }
+
+    @Test
+    public void testCache() {
+
+        File patch = new File("SpigotPlayer.json");
+        try {
+            File dir = Files.createTempDirectory("patch-cache").toFile();
+            PatchCache cache = new PatchCache(dir);
+
+            PatchFile pf = cache.load(patch);
+            Assertions.assertEquals(5, pf.getEntries().size());
+            Assertions.assertTrue(cache.load(patch) == pf);
+
+            File[] compiled = dir.listFiles((d, name) -> name.endsWith(".bin"));
+            Assertions.assertTrue(compiled != null && compiled.length == 1);
+
+        } catch (IOException ex) {
+            Assertions.fail("An exception occurred while loading a patch file!", ex);
+        }
+    }
+
+    @Test
+    public void testCompiledCache() {
+
+        String[] names = { "SpigotPlayer", "ContextSerializer" };
+        try {
+            File dir = Files.createTempDirectory("patch-cache").toFile();
+            for(String name : names) {
+                File patch = new File(name + ".json");
+                File source = new File(name + ".java");
+
+                PatchCache.clearMemory();
+                PatchFile parsed = new PatchCache(dir).load(patch);
+                File[] compiled = dir.listFiles((d, file) -> file.endsWith(".bin"));
+                Assertions.assertTrue(compiled != null && compiled.length > 0);
+                for(File file : compiled) {
+                    Assertions.assertTrue(file.setLastModified(1000));
+                }
+
+                // Nothing in memory, so the patch file must come from its compiled form, which is not written again
+                PatchCache.clearMemory();
+                PatchFile decoded = new PatchCache(dir).load(patch);
+                Assertions.assertFalse(decoded == parsed);
+                for(File file : compiled) {
+                    Assertions.assertEquals(1000L, file.lastModified());
+                }
+
+                Assertions.assertEquals(parsed.getEntries().size(), decoded.getEntries().size());
+                Assertions.assertEquals(apply(parsed, source), apply(decoded, source));
+            }
+            for(File file : dir.listFiles()) {
+                Files.delete(file.toPath());
+            }
+            Files.delete(dir.toPath());
+
+        } catch (IOException ex) {
+            Assertions.fail("An exception occurred while loading a patch file!", ex);
+        }
+    }
+
+    private static String apply(PatchFile pf, File source) throws IOException {
+        LoadedFile lf = LoadedFile.read(source.toPath(), StandardCharsets.UTF_8);
+        pf.patch(lf);
+        StringWriter out = new StringWriter();
+        lf.write(out);
+        return out.toString();
+    }
+
+    @Test
+    public void testReplaceRange() {
+
+        LoadedFile lf = new LoadedFile("foo foo\nfoo\nbar foo\nfoo");
+        new PatchEntry(new PatchEntry.Replace("foo", "baz\nqux"), List.of(LineSupplier.range(new IntRange(1, 3)))).patch(lf);
+
+        Assertions.assertEquals("baz\nqux baz\nqux\nbaz\nqux\nbar baz\nqux\nfoo", lf.getAllLines().toString());
+        Assertions.assertEquals(8, lf.getLength());
+    }
+
+    @Test
+    public void testReplaceRegex() {
+
+        LoadedFile lf = new LoadedFile("a1 a2\na3\nb4 a5\na6");
+        new PatchEntry(new PatchEntry.RegRep(Pattern.compile("^a(\\d)", Pattern.MULTILINE), "<$1>"), List.of(LineSupplier.range(new IntRange(2, 3)))).patch(lf);
+        Assertions.assertEquals("a1 a2\n<3>\nb4 a5\na6", lf.getAllLines().toString());
+
+        lf = new LoadedFile("a1 a2\na3\nb4 a5\na6");
+        new PatchEntry(new PatchEntry.RegRep(Pattern.compile("a(\\d)$"), "\\$$1", true), List.of(LineSupplier.range(new IntRange(1, 3)))).patch(lf);
+        Assertions.assertEquals("a1 $2\n$3\nb4 $5\na6", lf.getAllLines().toString());
+
+        lf = new LoadedFile("a1 a2\na3");
+        new PatchEntry(new PatchEntry.RegRep(Pattern.compile("x"), "y"), List.of(LineSupplier.all())).patch(lf);
+        Assertions.assertEquals("a1 a2\na3", lf.getAllLines().toString());
+
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> new PatchEntry.RegRep(Pattern.compile("a(\\d)"), "$2"));
+        IOException ex = Assertions.assertThrows(IOException.class, () -> PatchFile.read(new StringReader("[\n  { \"type\": \"replace_regex\", \"lines\": [\"all\"], \"find\": \"a\", \"replace\": \"$1\" }\n]"), "Bad.json"));
+        Assertions.assertTrue(ex.getMessage().startsWith("Bad.json:2:"), ex.getMessage());
+    }
+
+    @Test
+    public void testStats() {
+
+        PatchFile pf = new PatchFile(List.of(
+                new PatchEntry(new PatchEntry.Replace("foo", "bar"), List.of(LineSupplier.find("foo", new IntRange(0)))),
+                new PatchEntry(new PatchEntry.Set("unused"), List.of(LineSupplier.find("missing", new IntRange(0))))
+        ));
+
+        PatchStats stats = new PatchStats("Test.json");
+        LoadedFile lf = new LoadedFile("foo\nbaz\nfoo foo");
+        pf.patch(lf, stats);
+
+        Assertions.assertEquals("bar\nbaz\nbar bar", lf.getAllLines().toString());
+        Assertions.assertEquals(2, stats.getEntries().size());
+        Assertions.assertEquals("replace", stats.getEntries().get(0).type());
+        Assertions.assertEquals(2, stats.getEntries().get(0).ranges());
+        Assertions.assertEquals(0, stats.getEntries().get(1).ranges());
+
+        PatchStats loaded = PatchStats.load(stats.toJson());
+        Assertions.assertEquals(stats.getEntries(), loaded.getEntries());
+    }
+
+    @Test
+    public void testRead() throws IOException {
+
+        PatchFile pf;
+        try(Reader reader = new BufferedReader(new FileReader("ContextSerializer.json"))) {
+            pf = PatchFile.read(reader, "ContextSerializer.json");
+        }
+
+        LoadedFile lf = LoadedFile.read(new BufferedReader(new FileReader("ContextSerializer.java")));
+        pf.patch(lf);
+
+        PatchFile loaded = PatchFile.load(new Gson().fromJson(new BufferedReader(new FileReader("ContextSerializer.json")), JsonArray.class));
+        LoadedFile expected = LoadedFile.read(new BufferedReader(new FileReader("ContextSerializer.java")));
+        loaded.patch(expected);
+
+        Assertions.assertEquals(expected.getAllLines().toString(), lf.getAllLines().toString());
+
+        IOException ex = Assertions.assertThrows(IOException.class, () -> PatchFile.read(new StringReader("[\n  { \"type\": \"nope\", \"lines\": [] }\n]"), "Bad.json"));
+        Assertions.assertEquals("Bad.json:2:3: Unknown entry type nope! (at $[0])", ex.getMessage());
+
+        ex = Assertions.assertThrows(IOException.class, () -> PatchFile.read(new StringReader("[\n  { \"type\": \"set\", \"value\": \"x\",\n    \"lines\": [ 1, \"bad\" ] }\n]"), "Bad.json"));
+        Assertions.assertEquals("Bad.json:3:19: Don't know how to read \"bad\" as a line serializer! (at $[0].lines[1])", ex.getMessage());
+
+        // Errors from Gson keep their own message
+        ex = Assertions.assertThrows(IOException.class, () -> PatchFile.read(new StringReader("[\n  { \"type\": \"set\" \"lines\": [] }\n]"), "Bad.json"));
+        Assertions.assertEquals("Bad.json:2:19: " + ex.getCause().getMessage(), ex.getMessage());
+
+        ex = Assertions.assertThrows(IOException.class, () -> PatchFile.read(new StringReader("[\n  { \"type\": \"set\", \"value\": \"x\",\n    \"lines\": [ { \"find\": \"x\", \"offset\": { \"min\": \"a\" } } ] }\n]"), "Bad.json"));
+        Assertions.assertEquals("Bad.json:3:50: " + ex.getCause().getMessage(), ex.getMessage());
+
+        ex = Assertions.assertThrows(IOException.class, () -> PatchFile.read(new StringReader("[\n]\n]"), "Bad.json"));
+        Assertions.assertTrue(ex.getMessage().startsWith("Bad.json:3:1: "), ex.getMessage());
+    }
+
+    @Test
+    public void testDiff() throws IOException {
+
+        String diff = """
+                --- a/Test.java
+                +++ b/Test.java
+                @@ -2,3 +2,3 @@
+                 b
+                -c
+                +C
+                 d
+                @@ -8,3 +8,4 @@
+                 h
+                 i
+                 j
+                +k
+                \\ No newline at end of file
+                """;
+        DiffPatch patch = DiffPatch.read(new BufferedReader(new StringReader(diff)), "Test.patch");
+        Assertions.assertEquals(2, patch.getHunks().size());
+
+        // The whole file has moved down by a line, and the context after the first change no longer matches
+        LoadedFile lf = LoadedFile.read(new BufferedReader(new StringReader("extra\na\nb\nc\nD\ne\nf\ng\nh\ni\nj\n")));
+        PatchStats stats = new PatchStats("Test.patch");
+        patch.patch(lf, stats);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        lf.write(os);
+        Assertions.assertEquals("extra\na\nb\nC\nD\ne\nf\ng\nh\ni\nj\nk", os.toString());
+        Assertions.assertEquals(2, stats.getEntries().size());
+
+        LoadedFile strict = LoadedFile.read(new BufferedReader(new StringReader("extra\na\nb\nc\nD\ne\nf\ng\nh\ni\nj\n")));
+        Assertions.assertThrows(IllegalStateException.class, () -> patch.withSearch(0, Integer.MAX_VALUE).patch(strict, null));
+
+        IOException ex = Assertions.assertThrows(IOException.class, () -> DiffPatch.read(new BufferedReader(new StringReader("@@ -1,2 +1,2 @@\n a\n")), "Bad.patch"));
+        Assertions.assertTrue(ex.getMessage().startsWith("Bad.patch:1:"), ex.getMessage());
+    }
+
 }
@@ -0,0 +1,317 @@
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class TestPatchPlugin {
+
+    @Test
+    public void testConfigurationCache() throws IOException {
+
+        Path dir = Files.createTempDirectory("patch-plugin");
+        try {
+            Files.writeString(dir.resolve("settings.gradle.kts"), "rootProject.name = \"test\"\n");
+            Files.writeString(dir.resolve("build.gradle.kts"), """
+                    plugins {
+                        java
+                        id("org.wallentines.gradle-patch")
+                    }
+                    patch {
+                        patchSet("java", sourceSets["main"], sourceSets["main"].java, tasks.compileJava)
+                    }
+                    """);
+            write(dir.resolve("src/main/java/a/A.java"), "package a;\nclass A {\n    String s = \"base\";\n}\n");
+            write(dir.resolve("src/main/java/a/B.java"), "package a;\nclass B {\n}\n");
+            write(dir.resolve("patch/main/java/a/A.json"), replace("base", "first"));
+
+            BuildResult result = build(dir, "compileJava");
+            Assertions.assertTrue(result.getOutput().contains("Configuration cache entry stored."), result.getOutput());
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":patchJava").getOutcome());
+            Assertions.assertEquals("package a;\nclass A {\n    String s = \"first\";\n}\n", Files.readString(dir.resolve("build/generated/sources/patch/java/main/a/A.java")));
+            Assertions.assertTrue(Files.exists(dir.resolve("build/classes/java/main/a/A.class")));
+            Assertions.assertTrue(Files.exists(dir.resolve("build/classes/java/main/a/B.class")));
+
+            // The patched sources are found again by the compile task, which is restored from the cache
+            write(dir.resolve("patch/main/java/a/A.json"), replace("base", "second"));
+
+            result = build(dir, "compileJava");
+            Assertions.assertTrue(result.getOutput().contains("Reusing configuration cache."), result.getOutput());
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":patchJava").getOutcome());
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":compileJava").getOutcome());
+            Assertions.assertEquals("package a;\nclass A {\n    String s = \"second\";\n}\n", Files.readString(dir.resolve("build/generated/sources/patch/java/main/a/A.java")));
+
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testUnchangedOutput() throws IOException {
+
+        Path dir = Files.createTempDirectory("patch-plugin");
+        try {
+            Files.writeString(dir.resolve("settings.gradle.kts"), "rootProject.name = \"test\"\n");
+            Files.writeString(dir.resolve("build.gradle.kts"), """
+                    plugins {
+                        java
+                        id("org.wallentines.gradle-patch")
+                    }
+                    patch {
+                        patchSet("java", sourceSets["main"], sourceSets["main"].java, tasks.compileJava)
+                    }
+                    """);
+            write(dir.resolve("src/main/java/a/A.java"), "package a;\nclass A {\n    String s = \"base\";\n}\n");
+            write(dir.resolve("patch/main/java/a/A.json"), replace("base", "first"));
+
+            Path output = dir.resolve("build/generated/sources/patch/java/main/a/A.java");
+            Path manifest = dir.resolve("build/generated/sources/patch/java/main.hashes");
+
+            build(dir, "compileJava");
+            String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(output)));
+            Assertions.assertEquals(hash + " " + Files.size(output) + " " + output.toFile().lastModified() + " a/A.java\n", Files.readString(manifest));
+
+            // The manifest shows the output has not changed, so it is not written again
+            long modified = output.toFile().lastModified() - 10000;
+            Assertions.assertTrue(output.toFile().setLastModified(modified));
+            Files.writeString(manifest, hash + " " + Files.size(output) + " " + modified + " a/A.java\n");
+            write(dir.resolve("patch/main/java/a/A.json"), " " + replace("base", "first"));
+
+            BuildResult result = build(dir, "compileJava");
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":patchJava").getOutcome());
+            Assertions.assertEquals(modified, output.toFile().lastModified());
+
+            // The output no longer matches the manifest, so it is compared instead
+            Assertions.assertTrue(output.toFile().setLastModified(modified - 10000));
+            write(dir.resolve("patch/main/java/a/A.json"), "  " + replace("base", "first"));
+
+            result = build(dir, "compileJava");
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":patchJava").getOutcome());
+            Assertions.assertEquals(modified - 10000, output.toFile().lastModified());
+            Assertions.assertEquals(hash + " " + Files.size(output) + " " + (modified - 10000) + " a/A.java\n", Files.readString(manifest));
+
+            write(dir.resolve("patch/main/java/a/A.json"), replace("base", "other"));
+
+            result = build(dir, "compileJava");
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":compileJava").getOutcome());
+            Assertions.assertNotEquals(modified - 10000, output.toFile().lastModified());
+            Assertions.assertEquals("package a;\nclass A {\n    String s = \"other\";\n}\n", Files.readString(output));
+
+        } catch (NoSuchAlgorithmException ex) {
+            Assertions.fail("SHA-256 is not available!", ex);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testFanOut() throws IOException {
+
+        Path dir = Files.createTempDirectory("patch-plugin");
+        try {
+            Files.writeString(dir.resolve("settings.gradle.kts"), "rootProject.name = \"test\"\n");
+            Files.writeString(dir.resolve("build.gradle.kts"), """
+                    plugins {
+                        java
+                        id("org.wallentines.gradle-patch")
+                    }
+                    for(version in listOf("v1", "v2")) {
+                        sourceSets.create(version).java.srcDir("src/main/java")
+                    }
+                    patch {
+                        fanOut = true
+                        patchSet("java", sourceSets["v1"], sourceSets["main"].java, tasks.named<JavaCompile>("compileV1Java"))
+                        patchSet("java", sourceSets["v2"], sourceSets["main"].java, tasks.named<JavaCompile>("compileV2Java"))
+                    }
+                    """);
+            write(dir.resolve("src/main/java/a/A.java"), "package a;\nclass A {\n    String s = \"base\";\n}\n");
+            write(dir.resolve("src/main/java/a/B.java"), "package a;\nclass B {\n}\n");
+            write(dir.resolve("patch/v1/java/a/A.json"), replace("base", "v1"));
+            write(dir.resolve("patch/v2/java/a/A.json"), replace("base", "v2"));
+            write(dir.resolve("patch/v2/java/a/B.json"), replace("class B {", "class B {\\n    int b;"));
+
+            Path v1 = dir.resolve("build/generated/sources/patch/java/v1/a");
+            Path v2 = dir.resolve("build/generated/sources/patch/java/v2/a");
+
+            BuildResult result = build(dir, "compileV1Java", "compileV2Java");
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":patchJava").getOutcome());
+            Assertions.assertTrue(result.getOutput().contains("Patching 3 of 3 file(s)"), result.getOutput());
+            Assertions.assertEquals("package a;\nclass A {\n    String s = \"v1\";\n}\n", Files.readString(v1.resolve("A.java")));
+            Assertions.assertEquals("package a;\nclass A {\n    String s = \"v2\";\n}\n", Files.readString(v2.resolve("A.java")));
+            Assertions.assertEquals("package a;\nclass B {\n    int b;\n}\n", Files.readString(v2.resolve("B.java")));
+            Assertions.assertFalse(Files.exists(v1.resolve("B.java")));
+            Assertions.assertTrue(Files.exists(dir.resolve("build/classes/java/v1/a/B.class")));
+
+            // Only the changed patch is applied again
+            Assertions.assertTrue(v2.resolve("A.java").toFile().setLastModified(1000));
+            write(dir.resolve("patch/v1/java/a/A.json"), replace("base", "changed"));
+
+            result = build(dir, "compileV1Java", "compileV2Java");
+            Assertions.assertTrue(result.getOutput().contains("Reusing configuration cache."), result.getOutput());
+            Assertions.assertTrue(result.getOutput().contains("Patching 1 of 3 file(s)"), result.getOutput());
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":compileV1Java").getOutcome());
+            Assertions.assertEquals(TaskOutcome.UP_TO_DATE, result.task(":compileV2Java").getOutcome());
+            Assertions.assertEquals("package a;\nclass A {\n    String s = \"changed\";\n}\n", Files.readString(v1.resolve("A.java")));
+            Assertions.assertEquals(1000, v2.resolve("A.java").toFile().lastModified());
+
+            // A removed patch removes its output, and the original source is compiled again
+            Files.delete(dir.resolve("patch/v2/java/a/B.json"));
+
+            result = build(dir, "compileV1Java", "compileV2Java");
+            Assertions.assertTrue(result.getOutput().contains("Reusing configuration cache."), result.getOutput());
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":patchJava").getOutcome());
+            Assertions.assertEquals(TaskOutcome.UP_TO_DATE, result.task(":compileV1Java").getOutcome());
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":compileV2Java").getOutcome());
+            Assertions.assertFalse(Files.exists(v2.resolve("B.java")));
+            Assertions.assertTrue(Files.exists(v2.resolve("A.java")));
+            Assertions.assertTrue(Files.exists(dir.resolve("build/classes/java/v2/a/B.class")));
+
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testLayers() throws IOException {
+
+        Path dir = Files.createTempDirectory("patch-plugin");
+        try {
+            Files.writeString(dir.resolve("settings.gradle.kts"), "rootProject.name = \"test\"\n");
+            Files.writeString(dir.resolve("build.gradle.kts"), layeredScript("\"common/java\", \"main/java\""));
+            write(dir.resolve("src/main/java/a/A.java"), "package a;\nclass A {\n    String s = \"base\";\n}\n");
+            write(dir.resolve("src/main/java/a/B.java"), "package a;\nclass B {\n    String s = \"base\";\n}\n");
+            write(dir.resolve("src/main/java/a/C.java"), "package a;\nclass C {\n    String s = \"base\";\n}\n");
+
+            // The second layer edits a line inserted by the first
+            write(dir.resolve("patch/common/java/a/A.json"), "[ { \"type\": \"insert_before\", \"lines\": [ { \"find\": \"String s\" } ], \"value\": \"    int added = 1;\" } ]");
+            write(dir.resolve("patch/main/java/a/A.json"), "[ { \"type\": \"replace\", \"lines\": [ { \"find\": \"int added\" } ], \"find\": \"1\", \"replace\": \"2\" } ]");
+            write(dir.resolve("patch/main/java/a/B.json"), replace("base", "main"));
+            write(dir.resolve("patch/common/java/a/C.json"), replace("base", "common"));
+
+            Path output = dir.resolve("build/generated/sources/patch/java/main/a");
+
+            BuildResult result = build(dir, "compileJava");
+            Assertions.assertTrue(result.getOutput().contains("Patching 3 of 3 file(s)"), result.getOutput());
+            Assertions.assertEquals("package a;\nclass A {\n    String s = \"base\";\n    int added = 2;\n}\n", Files.readString(output.resolve("A.java")));
+            Assertions.assertEquals("package a;\nclass B {\n    String s = \"main\";\n}\n", Files.readString(output.resolve("B.java")));
+            Assertions.assertEquals("package a;\nclass C {\n    String s = \"common\";\n}\n", Files.readString(output.resolve("C.java")));
+
+            // Changing the order of the layers patches every file again
+            Files.writeString(dir.resolve("build.gradle.kts"), layeredScript("\"main/java\", \"common/java\""));
+
+            result = build(dir, "compileJava");
+            Assertions.assertEquals(TaskOutcome.SUCCESS, result.task(":patchJava").getOutcome());
+            Assertions.assertTrue(result.getOutput().contains("Patching 3 of 3 file(s)"), result.getOutput());
+            Assertions.assertEquals("package a;\nclass A {\n    String s = \"base\";\n    int added = 1;\n}\n", Files.readString(output.resolve("A.java")));
+
+            // Removing a patch from one layer only patches that source again, with the patches left in other layers
+            Files.delete(dir.resolve("patch/common/java/a/A.json"));
+
+            result = build(dir, "compileJava");
+            Assertions.assertTrue(result.getOutput().contains("Reusing configuration cache."), result.getOutput());
+            Assertions.assertTrue(result.getOutput().contains("Patching 1 of 3 file(s)"), result.getOutput());
+            Assertions.assertEquals("package a;\nclass A {\n    String s = \"base\";\n}\n", Files.readString(output.resolve("A.java")));
+            Assertions.assertEquals("package a;\nclass C {\n    String s = \"common\";\n}\n", Files.readString(output.resolve("C.java")));
+
+            // Each layer may only have one patch for a source
+            write(dir.resolve("patch/common/java/a/C.patch"), "--- a/C.java\n+++ b/C.java\n@@ -1,2 +1,2 @@\n package a;\n-class C {\n+final class C {\n");
+
+            result = runner(dir, "compileJava").buildAndFail();
+            Assertions.assertTrue(result.getOutput().contains("Found multiple patches for a/C.java"), result.getOutput());
+
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testMaxParallelism() throws IOException {
+
+        Path dir = Files.createTempDirectory("patch-plugin");
+        try {
+            Files.writeString(dir.resolve("settings.gradle.kts"), "rootProject.name = \"test\"\n");
+            Files.writeString(dir.resolve("build.gradle.kts"), """
+                    plugins {
+                        java
+                        id("org.wallentines.gradle-patch")
+                    }
+                    patch {
+                        patchSet("java", sourceSets["main"], sourceSets["main"].java, tasks.compileJava)
+                    }
+                    tasks.named<org.wallentines.gradle.patch.PatchTask>("patchJava") {
+                        maxParallelism = 1
+                    }
+                    """);
+            for(String name : List.of("A", "B", "C")) {
+                write(dir.resolve("src/main/java/a/" + name + ".java"), "package a;\nclass " + name + " {\n    String s = \"base\";\n}\n");
+            }
+            write(dir.resolve("patch/main/java/a/A.json"), "[ { \"type\": \"unknown\" } ]");
+            write(dir.resolve("patch/main/java/a/B.json"), replace("base", "patched"));
+            write(dir.resolve("patch/main/java/a/C.json"), "[ { \"type\": \"unknown\" } ]");
+
+            // Each file is patched in its own batch, and a failure in one does not stop the others
+            BuildResult result = runner(dir, "patchJava").buildAndFail();
+            Assertions.assertTrue(result.getOutput().contains("A.json"), result.getOutput());
+            Assertions.assertTrue(result.getOutput().contains("C.json"), result.getOutput());
+            Assertions.assertEquals("package a;\nclass B {\n    String s = \"patched\";\n}\n", Files.readString(dir.resolve("build/generated/sources/patch/java/main/a/B.java")));
+
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static String layeredScript(String layers) {
+        return """
+                plugins {
+                    java
+                    id("org.wallentines.gradle-patch")
+                }
+                patch {
+                    patchSet("java", sourceSets["main"], sourceSets["main"].java, tasks.compileJava, listOf(%s))
+                }
+                """.formatted(layers);
+    }
+
+    private static BuildResult build(Path dir, String... tasks) {
+        return runner(dir, tasks).build();
+    }
+
+    private static GradleRunner runner(Path dir, String... tasks) {
+        List<String> arguments = new ArrayList<>(List.of(tasks));
+        arguments.add("--configuration-cache");
+        arguments.add("--info");
+        return GradleRunner.create()
+                .withProjectDir(dir.toFile())
+                .withPluginClasspath()
+                .withArguments(arguments);
+    }
+
+    private static String replace(String find, String replace) {
+        return "[ { \"type\": \"replace\", \"lines\": [\"all\"], \"find\": \"" + find + "\", \"replace\": \"" + replace + "\" } ]";
+    }
+
+    private static void write(Path file, String contents) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, contents);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try(Stream<Path> files = Files.walk(dir)) {
+            for(Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.wallentines.gradle.patch.PatchWorkAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class TestPatchWorkAction {
+
+    @Test
+    public void testUnreadableSharedSource() throws IOException {
+
+        Path dir = Files.createTempDirectory("patch-work");
+        try {
+            Path a = dir.resolve("src/A.java");
+            Path missing = dir.resolve("src/Missing.java");
+            Files.createDirectories(a.getParent());
+            Files.writeString(a, "class A {\n    String s = \"base\";\n}\n");
+            Path patch = dir.resolve("patch/A.json");
+            Files.createDirectories(patch.getParent());
+            Files.writeString(patch, "[ { \"type\": \"replace\", \"lines\": [\"all\"], \"find\": \"base\", \"replace\": \"patched\" } ]");
+
+            Project project = ProjectBuilder.builder().withProjectDir(dir.resolve("project").toFile()).build();
+            PatchWorkAction.Parameters params = project.getObjects().newInstance(PatchWorkAction.Parameters.class);
+
+            // Both sources are shared by two patch sets. The last patch set for A edits A's base in place
+            List<Path> sources = List.of(a, a, missing, missing);
+            for(int i = 0 ; i < sources.size() ; i++) {
+                params.getPatchFiles().add(patch.toFile());
+                params.getPatchCounts().add(1);
+                params.getSourceFiles().add(sources.get(i).toFile());
+                params.getOutputFiles().add(dir.resolve("out" + (i % 2)).resolve(sources.get(i).getFileName()).toFile());
+                params.getPreviousEntries().add("");
+                params.getTargets().add(i % 2);
+            }
+            params.getPatchNames().set(List.of("A.json", "A.json", "Missing.json", "Missing.json"));
+            params.getTargetNames().set(List.of("", "other"));
+            params.getManifestFiles().set(Map.of(0, dir.resolve("manifest0.txt").toFile(), 1, dir.resolve("manifest1.txt").toFile()));
+
+            PatchWorkAction action = new PatchWorkAction() {
+                @Override
+                public PatchWorkAction.Parameters getParameters() {
+                    return params;
+                }
+            };
+            IllegalStateException ex = Assertions.assertThrows(IllegalStateException.class, action::execute);
+
+            // Neither patch set for the missing source may reuse A
+            Assertions.assertTrue(ex.getMessage().startsWith("Unable to patch 2 file(s)!"), ex.getMessage());
+            Assertions.assertEquals("class A {\n    String s = \"patched\";\n}\n", Files.readString(dir.resolve("out0/A.java")));
+            Assertions.assertEquals("class A {\n    String s = \"patched\";\n}\n", Files.readString(dir.resolve("out1/A.java")));
+            Assertions.assertFalse(new File(dir.toFile(), "out0/Missing.java").exists());
+            Assertions.assertFalse(new File(dir.toFile(), "out1/Missing.java").exists());
+
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try(Stream<Path> files = Files.walk(dir)) {
+            for(Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+}
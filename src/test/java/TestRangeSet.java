@@ -0,0 +1,67 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.wallentines.gradle.patch.IntRange;
+import org.wallentines.gradle.patch.LineSupplier;
+import org.wallentines.gradle.patch.LoadedFile;
+import org.wallentines.gradle.patch.RangeSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestRangeSet {
+
+    @Test
+    public void testAdd() {
+
+        RangeSet set = new RangeSet();
+        set.add(10, 12);
+        set.add(1, 1);
+        set.add(2, 2);
+        set.add(4, 6);
+        set.add(5, 11);
+
+        Assertions.assertEquals(3, set.size());
+        Assertions.assertEquals(new IntRange(1), set.get(0));
+        Assertions.assertEquals(new IntRange(2), set.get(1));
+        Assertions.assertEquals(new IntRange(4, 12), set.get(2));
+        Assertions.assertTrue(set.contains(8));
+        Assertions.assertFalse(set.contains(3));
+
+        List<IntRange> descending = new ArrayList<>();
+        set.forEachDescending((min, max) -> descending.add(new IntRange(min, max)));
+        Assertions.assertEquals(List.of(new IntRange(4, 12), new IntRange(2), new IntRange(1)), descending);
+    }
+
+    @Test
+    public void testOperations() {
+
+        RangeSet a = RangeSet.of(1, 10);
+        a.add(20, 30);
+        RangeSet b = RangeSet.of(5, 25);
+
+        Assertions.assertEquals(RangeSet.of(1, 30), a.union(b));
+
+        RangeSet intersect = RangeSet.of(5, 10);
+        intersect.add(20, 25);
+        Assertions.assertEquals(intersect, a.intersect(b));
+
+        RangeSet subtract = RangeSet.of(1, 4);
+        subtract.add(26, 30);
+        Assertions.assertEquals(subtract, a.subtract(b));
+
+        Assertions.assertEquals(RangeSet.of(1, 4), RangeSet.of(1, Integer.MAX_VALUE).subtract(RangeSet.of(5, Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void testSharedStart() {
+
+        LoadedFile lf = new LoadedFile("a\nfoo\nfoo\nbar\nb");
+        RangeSet lines = LineSupplier.multi(List.of(
+                LineSupplier.find("foo", new IntRange(0)),
+                LineSupplier.find("bar", new IntRange(-2, 0))
+        )).getLines(lf);
+
+        Assertions.assertEquals(RangeSet.of(2, 4), lines);
+    }
+
+}